@@ -1,21 +1,33 @@
 package ascii_art;
 
+import image.BrightnessCache;
+import image.BrightnessPyramid;
 import image.Image;
 import image.ImageUtils;
+import image.ParallelLoop;
+import image.StreamingBrightnessReader;
 import image_char_matching.SubImgCharMatcher;
 
+import java.io.IOException;
+
 /**
  * Generates ASCII art from an image using a specified character set and resolution.
+ * Tile brightness can be shared between runs through a brightness pyramid of the image
+ * or a brightness cache; the algorithm itself keeps no state between runs.
  */
 public class AsciiArtAlgorithm {
 
-    // save the last image partition rightness
-    private static double[][] lastImagePartitionBrightness;
+    /**
+     * Images with more pixels than this are streamed from their file instead of loaded into memory.
+     */
+    public static final long STREAMING_PIXEL_THRESHOLD = 32_000_000L;
 
-    private final Image image;
+    private final BrightnessPyramid brightnessPyramid;
     private final int res;
     private final SubImgCharMatcher matcher;
-    private final boolean use;
+    // optional, shared between algorithm instances and threads
+    private final BrightnessCache brightnessCache;
+    private MatchMode matchMode = MatchMode.BRIGHTNESS;
 
     /**
      * Constructor for AsciiArtAlgorithm class.
@@ -24,11 +36,131 @@ public class AsciiArtAlgorithm {
      * @param res     The resolution for ASCII art generation.
      * @param matcher The character set used for ASCII art representation.
      */
-    public AsciiArtAlgorithm(Image image, int res, SubImgCharMatcher matcher, boolean use) {
-        this.image = image;
+    public AsciiArtAlgorithm(Image image, int res, SubImgCharMatcher matcher) {
+        this(new BrightnessPyramid(image), res, matcher, null);
+    }
+
+    /**
+     * Constructor for AsciiArtAlgorithm class, reusing tile brightness from a cache.
+     *
+     * @param image           The image to convert to ASCII art.
+     * @param res             The resolution for ASCII art generation.
+     * @param matcher         The character set used for ASCII art representation.
+     * @param brightnessCache The cache to look up and store the image's tile brightness in.
+     */
+    public AsciiArtAlgorithm(Image image, int res, SubImgCharMatcher matcher, BrightnessCache brightnessCache) {
+        this(new BrightnessPyramid(image), res, matcher, brightnessCache);
+    }
+
+    /**
+     * Constructor for AsciiArtAlgorithm class, reading tile brightness from a cached pyramid.
+     *
+     * @param brightnessPyramid The brightness pyramid of the image to convert to ASCII art.
+     * @param res               The resolution for ASCII art generation.
+     * @param matcher           The character set used for ASCII art representation.
+     */
+    public AsciiArtAlgorithm(BrightnessPyramid brightnessPyramid, int res, SubImgCharMatcher matcher) {
+        this(brightnessPyramid, res, matcher, null);
+    }
+
+    /**
+     * Constructor for AsciiArtAlgorithm class, reading tile brightness from a cached pyramid and
+     * sharing it with other conversions of the same image through a cache.
+     *
+     * @param brightnessPyramid The brightness pyramid of the image to convert to ASCII art.
+     * @param res               The resolution for ASCII art generation.
+     * @param matcher           The character set used for ASCII art representation.
+     * @param brightnessCache   The cache to look up and store the image's tile brightness in.
+     */
+    public AsciiArtAlgorithm(BrightnessPyramid brightnessPyramid, int res, SubImgCharMatcher matcher,
+                             BrightnessCache brightnessCache) {
+        this.brightnessPyramid = brightnessPyramid;
         this.res = res;
         this.matcher = matcher;
-        this.use = use;
+        this.brightnessCache = brightnessCache;
+    }
+
+    /**
+     * Picks how much to subsample an image while decoding it for a resolution and match mode.
+     * Matching shapes needs a full pattern of samples per tile, matching brightness needs fewer.
+     *
+     * @param width     The width of the full image.
+     * @param res       The resolution the image is decoded for.
+     * @param matchMode How characters will be matched to the image's tiles.
+     * @return The subsampling factor, 1 to decode every pixel.
+     */
+    public static int calcDecodeSubsampling(int width, int res, MatchMode matchMode) {
+        if (matchMode == MatchMode.STRUCTURE) {
+            return ImageUtils.calcDecodeSubsampling(width, res, SubImgCharMatcher.getPatternSize());
+        }
+        return ImageUtils.calcDecodeSubsampling(width, res);
+    }
+
+    /**
+     * Checks whether an image of a number of pixels is too large to load and must be streamed.
+     *
+     * @param pixels The number of pixels of the image, as decoded.
+     * @return true if the image must be streamed.
+     */
+    public static boolean needsStreaming(long pixels) {
+        return pixels > STREAMING_PIXEL_THRESHOLD;
+    }
+
+    /**
+     * Gets the brightness pyramid of an image file: streamed if the image is too large to load,
+     * otherwise decoded subsampled as far as the resolution and match mode allow.
+     *
+     * @param path      The path to the image file.
+     * @param reader    A reader of the same file, which has read the image's size.
+     * @param res       The resolution the image is converted at.
+     * @param matchMode How characters will be matched to the image's tiles.
+     * @return The brightness pyramid of the image.
+     * @throws IOException If the image cannot be read.
+     */
+    public static BrightnessPyramid loadPyramid(String path, StreamingBrightnessReader reader, int res,
+                                                MatchMode matchMode) throws IOException {
+        if (needsStreaming((long) reader.getWidth() * reader.getHeight())) {
+            return new BrightnessPyramid(reader);
+        }
+        return new BrightnessPyramid(new Image(path, calcDecodeSubsampling(reader.getWidth(), res, matchMode)));
+    }
+
+    /**
+     * Sets how a character is picked for each tile, by brightness (the default) or by shape.
+     *
+     * @param matchMode The match mode to use.
+     */
+    public void setMatchMode(MatchMode matchMode) {
+        this.matchMode = matchMode;
+    }
+
+    /**
+     * Gets the charset the algorithm matches tiles with.
+     *
+     * @return The character matcher.
+     */
+    SubImgCharMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Checks whether run() picks characters by brightness alone, as opposed to by shape.
+     *
+     * @return true if characters are matched by brightness.
+     */
+    boolean matchesByBrightness() {
+        return matchMode == MatchMode.BRIGHTNESS
+                || (matchMode == MatchMode.STRUCTURE && brightnessPyramid.getPaddedImage() == null);
+    }
+
+    /**
+     * Checks whether every tile's character is independent of the other tiles, so single tiles
+     * can be matched again with matchTile.
+     *
+     * @return true unless the tiles are dithered.
+     */
+    boolean matchesTilesIndependently() {
+        return matchMode != MatchMode.DITHER;
     }
 
     /**
@@ -37,38 +169,100 @@ public class AsciiArtAlgorithm {
      * @return A 2D array representing the ASCII art of the image.
      */
     public char[][] run() {
-        // Pad the image and partition it into smaller images
-        Image paddedImage = ImageUtils.padImage(image);
-        Image[][] imagePartition = ImageUtils.imagePartition(paddedImage, res);
-
-        // Initialize a 2D array to store the generated ASCII art
-        char[][] ASCIIArt = new char[imagePartition.length][imagePartition[0].length];
-
-        // first run on this image and res
-        if (!use) {
-            lastImagePartitionBrightness = new double[imagePartition.length][imagePartition[0].length];
-
-            // Generate ASCII art for each partitioned image
-            for (int i = 0; i < imagePartition.length; i++) {
-                for (int j = 0; j < imagePartition[0].length; j++) {
-                    // Calculate brightness of the image partition and map it to a character from the charset
-                    double partitionBrightness = ImageUtils.calcImageBrightness(imagePartition[i][j]);
-                    lastImagePartitionBrightness[i][j] = partitionBrightness;
-                    ASCIIArt[i][j] = matcher.getCharByImageBrightness(partitionBrightness);
-                }
-            }
+        double[][] brightness = calcBrightness();
+
+        // Dithering carries every tile's error over to the tiles after it
+        if (matchMode == MatchMode.DITHER) {
+            return matcher.getDitheredCharsByImageBrightness(brightness);
+        }
+
+        // Shapes need the image's pixels, which a streamed image does not keep
+        if (!matchesByBrightness()) {
+            return matchStructure(brightness);
+        }
+
+        // Map the brightness of each block of the image to a character from the charset
+        return matcher.getCharsByImageBrightness(brightness);
+    }
+
+    /**
+     * Looks up the brightness of each tile of the image at the algorithm's resolution.
+     *
+     * @return A 2D array of tile brightness values (0 to 1), shared and not to be modified.
+     */
+    double[][] calcBrightness() {
+        return brightnessCache == null
+                ? brightnessPyramid.getLevel(res)
+                : brightnessCache.computeIfAbsent(brightnessPyramid.getIdentity(), res,
+                        () -> brightnessPyramid.getLevel(res));
+    }
+
+    /**
+     * Matches a single tile to a character, as run() would unless the tiles are dithered, in
+     * which case the tile is matched by brightness alone.
+     *
+     * @param brightness The brightness of the tile.
+     * @param i          The tile's row.
+     * @param j          The tile's column.
+     * @param cells      An array of getPatternSize()^2 values to calculate the tile's pattern in.
+     * @param pattern    An array of getPatternWords() longs to pack the tile's pattern in.
+     * @return The character of the tile.
+     */
+    char matchTile(double brightness, int i, int j, double[] cells, long[] pattern) {
+        Image paddedImage = brightnessPyramid.getPaddedImage();
+        if (matchMode != MatchMode.STRUCTURE || paddedImage == null) {
+            return matcher.getCharByImageBrightness(brightness);
+        }
+        int block = paddedImage.getWidth() / res;
+        ImageUtils.calcCellBrightness(paddedImage, i * block, j * block, block,
+                SubImgCharMatcher.getPatternSize(), cells);
+        return matcher.getCharByPattern(cells, brightness, pattern);
+    }
+
+    /**
+     * Calculates the mean color of each tile, for colored output.
+     * Colors are taken from the image's pixels, which a streamed image does not keep.
+     *
+     * @return A 2D array of tile colors packed as 0xRRGGBB, of the same shape as the ASCII art,
+     * or null if the image is streamed.
+     */
+    public int[][] calcColors() {
+        Image paddedImage = brightnessPyramid.getPaddedImage();
+        if (paddedImage == null) {
+            return null;
         }
-        // not the first time with this image and res
-        else {
-            // Generate ASCII art for each partitioned image
-            for (int i = 0; i < imagePartition.length; i++) {
-                for (int j = 0; j < imagePartition[0].length; j++) {
-                    // Use the calculation from previous instance run
-                    ASCIIArt[i][j] = matcher.getCharByImageBrightness(lastImagePartitionBrightness[i][j]);
+        int block = paddedImage.getWidth() / res;
+        int[][] colors = new int[paddedImage.getHeight() / block][res];
+
+        ParallelLoop.forRange(colors.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < res; j++) {
+                    colors[i][j] = ImageUtils.calcImageColor(paddedImage, i * block, j * block, block, block);
                 }
             }
-        }
+        });
+        return colors;
+    }
 
+    /**
+     * Maps the brightness pattern of each block of the image to the character of the closest shape.
+     *
+     * @param brightness The brightness of each block.
+     * @return A 2D array representing the ASCII art of the image.
+     */
+    private char[][] matchStructure(double[][] brightness) {
+        int patternSize = SubImgCharMatcher.getPatternSize();
+        char[][] ASCIIArt = new char[brightness.length][res];
+
+        ParallelLoop.forRange(brightness.length, (from, to) -> {
+            double[] cells = new double[patternSize * patternSize];
+            long[] pattern = new long[SubImgCharMatcher.getPatternWords()];
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < res; j++) {
+                    ASCIIArt[i][j] = matchTile(brightness[i][j], i, j, cells, pattern);
+                }
+            }
+        });
         return ASCIIArt;
     }
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+package ascii_art;
+
+import ascii_output.AsciiOutput;
+import image.BrightnessPyramid;
+import image.Image;
+import image.ParallelLoop;
+import image.StreamingBrightnessReader;
+import image_char_matching.SubImgCharMatcher;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Converts a sequence of frames into ASCII art animation.
+ * The conversion is pipelined: one thread decodes frames and builds their brightness, another
+ * matches them to characters, and the calling thread outputs them, so frame N+1 is decoded
+ * while frame N is matched and frame N-1 is written. The stages are connected by small
+ * bounded queues, so a slow stage holds the others back instead of letting frames pile up.
+ * Tiles whose brightness changed less than a threshold since their character was matched
+ * keep that character, which saves matching them and keeps still parts of the scene steady.
+ */
+public class FrameSequenceConverter {
+
+    // frames waiting between two stages
+    private static final int QUEUE_CAPACITY = 2;
+
+    private final List<File> frames;
+    private final int res;
+    private final SubImgCharMatcher matcher;
+    private final MatchMode matchMode;
+    private final double reuseThreshold;
+
+    /**
+     * Constructs a converter for a sequence of frame files.
+     *
+     * @param frames         The frame files, in playing order.
+     * @param res            The resolution for ASCII art generation.
+     * @param matcher        The character set used for ASCII art representation.
+     * @param matchMode      How a character is picked for each tile.
+     * @param reuseThreshold The brightness change below which a tile keeps its character, 0 to
+     *                       match every tile of every frame.
+     */
+    public FrameSequenceConverter(List<File> frames, int res, SubImgCharMatcher matcher, MatchMode matchMode,
+                                  double reuseThreshold) {
+        this.frames = frames;
+        this.res = res;
+        this.matcher = matcher;
+        this.matchMode = matchMode;
+        this.reuseThreshold = reuseThreshold;
+    }
+
+    /**
+     * Lists the image files of a directory, sorted by name, as the frames of a sequence.
+     * Numbered frames should be zero-padded so that sorting by name keeps them in order.
+     *
+     * @param directory The directory holding the frames.
+     * @return The frame files, in playing order.
+     * @throws IOException If the directory cannot be read.
+     */
+    public static List<File> listFrames(String directory) throws IOException {
+        File[] files = new File(directory).listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list frames in " + directory);
+        }
+        HashSet<String> suffixes = new HashSet<>(Arrays.asList(ImageIO.getReaderFileSuffixes()));
+        List<File> frames = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            String suffix = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+            if (file.isFile() && suffixes.contains(suffix)) {
+                frames.add(file);
+            }
+        }
+        frames.sort(null);
+        return frames;
+    }
+
+    /**
+     * Converts every frame and outputs it, in order.
+     *
+     * @param output The output to write each frame to.
+     * @return The number of frames output.
+     * @throws IOException If a frame cannot be read, or is narrower than the resolution.
+     */
+    public int run(AsciiOutput output) throws IOException {
+        BlockingQueue<Frame> decoded = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<Frame> matched = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Thread decoder = new Thread(() -> decodeFrames(decoded), "frame-decoder");
+        Thread matcherThread = new Thread(() -> matchFrames(decoded, matched), "frame-matcher");
+        decoder.setDaemon(true);
+        matcherThread.setDaemon(true);
+        decoder.start();
+        matcherThread.start();
+
+        int count = 0;
+        try {
+            for (Frame frame = matched.take(); frame != Frame.END; frame = matched.take()) {
+                if (frame.error instanceof IOException) {
+                    throw (IOException) frame.error;
+                } else if (frame.error != null) {
+                    throw new IOException(frame.error);
+                }
+                output.out(frame.art);
+                count++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Stop the stages if the output failed or the sequence was cut short
+            decoder.interrupt();
+            matcherThread.interrupt();
+        }
+        return count;
+    }
+
+    /**
+     * The first stage: decodes each frame and builds its tile brightness.
+     */
+    private void decodeFrames(BlockingQueue<Frame> decoded) {
+        try {
+            for (File file : frames) {
+                Frame frame = new Frame();
+                try {
+                    frame.pyramid = decode(file);
+                    frame.brightness = frame.pyramid.getLevel(res);
+                } catch (IOException | RuntimeException e) {
+                    frame.error = e;
+                }
+                decoded.put(frame);
+                if (frame.error != null) {
+                    return;
+                }
+            }
+            decoded.put(Frame.END);
+        } catch (InterruptedException e) {
+            // The conversion was stopped
+        }
+    }
+
+    /**
+     * Decodes a frame, subsampled as far as the resolution allows.
+     */
+    private BrightnessPyramid decode(File file) throws IOException {
+        int width = new StreamingBrightnessReader(file.getPath()).getWidth();
+        if (width < res) {
+            throw new IOException("Frame " + file + " is narrower than the resolution");
+        }
+        int subsampling = AsciiArtAlgorithm.calcDecodeSubsampling(width, res, matchMode);
+        return new BrightnessPyramid(new Image(file.getPath(), subsampling));
+    }
+
+    /**
+     * The second stage: matches each frame's tiles to characters, reusing the previous
+     * character of every tile that did not change enough.
+     */
+    private void matchFrames(BlockingQueue<Frame> decoded, BlockingQueue<Frame> matched) {
+        // The brightness each tile's current character was matched at
+        double[][] reference = null;
+        char[][] previousArt = null;
+        try {
+            for (Frame frame = decoded.take(); frame != Frame.END; frame = decoded.take()) {
+                if (frame.error != null) {
+                    matched.put(frame);
+                    return;
+                }
+                AsciiArtAlgorithm algorithm = new AsciiArtAlgorithm(frame.pyramid, res, matcher);
+                algorithm.setMatchMode(matchMode);
+                try {
+                    // A dithered tile depends on the tiles before it, so none can be kept and
+                    // no reference is needed
+                    if (!algorithm.matchesTilesIndependently()) {
+                        frame.art = algorithm.run();
+                    } else if (reference == null || reference.length != frame.brightness.length) {
+                        frame.art = algorithm.run();
+                        reference = copyOf(frame.brightness);
+                    } else {
+                        frame.art = matchChanged(algorithm, frame.brightness, reference, previousArt);
+                    }
+                } catch (RuntimeException e) {
+                    frame.error = e;
+                    matched.put(frame);
+                    return;
+                }
+                previousArt = frame.art;
+                // The pyramid holds the frame's pixels, which the output does not need
+                frame.pyramid = null;
+                matched.put(frame);
+            }
+            matched.put(Frame.END);
+        } catch (InterruptedException e) {
+            // The conversion was stopped
+        }
+    }
+
+    /**
+     * Matches the tiles whose brightness moved at least the threshold away from the brightness
+     * their character was matched at, and copies the previous character of every other tile.
+     *
+     * @param algorithm   The algorithm of the frame.
+     * @param brightness  The frame's tile brightness.
+     * @param reference   The brightness each previous character was matched at, updated for
+     *                    the tiles matched again.
+     * @param previousArt The previous frame's characters.
+     * @return The frame's characters.
+     */
+    private char[][] matchChanged(AsciiArtAlgorithm algorithm, double[][] brightness, double[][] reference,
+                                  char[][] previousArt) {
+        char[][] art = new char[brightness.length][];
+        int patternSize = SubImgCharMatcher.getPatternSize();
+        ParallelLoop.forRange(brightness.length, (from, to) -> {
+            double[] cells = new double[patternSize * patternSize];
+            long[] pattern = new long[SubImgCharMatcher.getPatternWords()];
+            for (int i = from; i < to; i++) {
+                art[i] = previousArt[i].clone();
+                for (int j = 0; j < art[i].length; j++) {
+                    if (Math.abs(brightness[i][j] - reference[i][j]) >= reuseThreshold) {
+                        art[i][j] = algorithm.matchTile(brightness[i][j], i, j, cells, pattern);
+                        reference[i][j] = brightness[i][j];
+                    }
+                }
+            }
+        });
+        return art;
+    }
+
+    private static double[][] copyOf(double[][] grid) {
+        double[][] copy = new double[grid.length][];
+        for (int i = 0; i < grid.length; i++) {
+            copy[i] = grid[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * A frame passing through the pipeline's stages.
+     */
+    private static class Frame {
+        // marks the end of the sequence
+        private static final Frame END = new Frame();
+
+        private BrightnessPyramid pyramid;
+        private double[][] brightness;
+        private char[][] art;
+        // the failure that ended the sequence at this frame
+        private Exception error;
+    }
+}
@@ -0,0 +1,129 @@
+package ascii_art;
+
+import image.ParallelLoop;
+import image_char_matching.SubImgCharMatcher;
+
+/**
+ * Keeps the ASCII art of the last run, so that a run after an edit of the charset matches
+ * again only the tiles whose brightness falls in the ranges where the edit changed the
+ * matching character, and rewrites them in place. Tiles are indexed by brightness with a
+ * counting sort into buckets, so the cost of an edit is proportional to the tiles it affects
+ * rather than to the whole grid.
+ * Only matching by brightness is incremental: a shape match depends on every glyph of the
+ * charset, and a dithered tile on the tiles before it, so in structure and dither modes every
+ * run matches all tiles.
+ */
+public class IncrementalAsciiArt {
+
+    // brightness buckets of the tile index, as fine as the matcher's changed ranges
+    private static final int INDEX_BUCKETS = 4096;
+    // share of the tiles above which matching them all in row order is faster than by index
+    private static final double MAX_REMATCHED_SHARE = 0.25;
+
+    // the tile brightness the art was matched from, compared by identity
+    private double[][] brightness;
+    // the charset snapshot the art was matched with
+    private SubImgCharMatcher.LookupTable lookupTable;
+    private char[][] art;
+    // tiles as row * columns + column, ordered by brightness bucket, built on the first edit
+    private int[] indexedTiles;
+    // the first position of each bucket in indexedTiles, and the end of the last one
+    private int[] bucketStarts;
+
+    /**
+     * Runs an algorithm, reusing the art of the previous run when only the charset changed.
+     * The returned art is updated in place by later runs over the same tile brightness.
+     *
+     * @param algorithm The algorithm to run.
+     * @return A 2D array representing the ASCII art of the image.
+     */
+    public char[][] run(AsciiArtAlgorithm algorithm) {
+        if (!algorithm.matchesByBrightness()) {
+            brightness = null;
+            art = null;
+            return algorithm.run();
+        }
+        SubImgCharMatcher matcher = algorithm.getMatcher();
+        double[][] grid = algorithm.calcBrightness();
+
+        // Take the snapshot before matching, so an edit made meanwhile is caught by the next run
+        SubImgCharMatcher.LookupTable current = matcher.getLookupTable();
+        if (grid != brightness || art == null) {
+            art = matcher.getCharsByImageBrightness(grid);
+            brightness = grid;
+            lookupTable = current;
+            indexedTiles = null;
+            return art;
+        }
+        if (current == lookupTable) {
+            return art;
+        }
+
+        if (indexedTiles == null) {
+            indexTiles();
+        }
+        double[] intervals = matcher.getChangedIntervals(lookupTable);
+        int[] ranges = new int[intervals.length];
+        int affected = 0;
+        for (int k = 0; k < intervals.length; k += 2) {
+            int firstBucket = Math.max(0, (int) Math.floor(intervals[k] * INDEX_BUCKETS));
+            int endBucket = Math.min(INDEX_BUCKETS, (int) Math.ceil(intervals[k + 1] * INDEX_BUCKETS));
+            ranges[k] = bucketStarts[firstBucket];
+            ranges[k + 1] = bucketStarts[endBucket];
+            affected += ranges[k + 1] - ranges[k];
+        }
+
+        // An edit that moves the charset's darkest or brightest char shifts nearly every tile
+        if (affected > MAX_REMATCHED_SHARE * indexedTiles.length) {
+            matcher.getCharsByImageBrightness(brightness, art);
+        } else {
+            for (int k = 0; k < ranges.length; k += 2) {
+                rematch(matcher, ranges[k], ranges[k + 1]);
+            }
+        }
+        lookupTable = current;
+        return art;
+    }
+
+    /**
+     * Matches the tiles at a range of positions of the index again.
+     */
+    private void rematch(SubImgCharMatcher matcher, int from, int to) {
+        int columns = brightness[0].length;
+        ParallelLoop.forRange(to - from, (start, end) -> {
+            for (int p = from + start; p < from + end; p++) {
+                int i = indexedTiles[p] / columns;
+                int j = indexedTiles[p] % columns;
+                art[i][j] = matcher.getCharByImageBrightness(brightness[i][j]);
+            }
+        });
+    }
+
+    /**
+     * Orders the tiles by brightness bucket, with a counting sort.
+     */
+    private void indexTiles() {
+        int columns = brightness[0].length;
+        bucketStarts = new int[INDEX_BUCKETS + 1];
+        for (double[] row : brightness) {
+            for (double value : row) {
+                bucketStarts[bucketOf(value) + 1]++;
+            }
+        }
+        for (int b = 0; b < INDEX_BUCKETS; b++) {
+            bucketStarts[b + 1] += bucketStarts[b];
+        }
+
+        indexedTiles = new int[bucketStarts[INDEX_BUCKETS]];
+        int[] next = bucketStarts.clone();
+        for (int i = 0; i < brightness.length; i++) {
+            for (int j = 0; j < columns; j++) {
+                indexedTiles[next[bucketOf(brightness[i][j])]++] = i * columns + j;
+            }
+        }
+    }
+
+    private static int bucketOf(double value) {
+        return Math.max(0, Math.min(INDEX_BUCKETS - 1, (int) (value * INDEX_BUCKETS)));
+    }
+}
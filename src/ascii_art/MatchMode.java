@@ -0,0 +1,23 @@
+package ascii_art;
+
+/**
+ * The ways AsciiArtAlgorithm can pick a character for each tile of the image.
+ */
+public enum MatchMode {
+    /**
+     * Match the tile's average brightness to the character with the closest brightness.
+     */
+    BRIGHTNESS,
+
+    /**
+     * Match the tile's light/dark pattern to the character with the most similar shape.
+     */
+    STRUCTURE,
+
+    /**
+     * Match the tile's brightness like BRIGHTNESS, carrying each tile's quantization error over
+     * to its unmatched neighbours (Floyd-Steinberg error diffusion), so small charsets show
+     * gradients instead of bands.
+     */
+    DITHER
+}
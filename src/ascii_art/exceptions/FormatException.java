@@ -10,6 +10,10 @@ public class FormatException extends Exception {
     private static final String ERROR_ADD_FORMAT = "Did not add due to incorrect format.";
     private static final String ERROR_REMOVE_FORMAT = "Did not remove due to incorrect format.";
     private static final String ERROR_RES_FORMAT = "Did not change resolution due to incorrect format.";
+    private static final String ERROR_THREADS_FORMAT = "Did not change thread count due to incorrect format.";
+    private static final String ERROR_MATCH_FORMAT = "Did not change match mode due to incorrect format.";
+    private static final String ERROR_COLOR_FORMAT = "Did not change color mode due to incorrect format.";
+    private static final String ERROR_FRAMES_FORMAT = "Did not convert frames due to incorrect format.";
     private static final String ERROR_UNKNOWN_COMMAND_FORMAT = "Unknown command format error.";
 
 
@@ -19,6 +23,10 @@ public class FormatException extends Exception {
     private static final String COMMAND_RES = "res";
     private static final String COMMAND_IMAGE = "image";
     private static final String COMMAND_OUTPUT = "output";
+    private static final String COMMAND_THREADS = "threads";
+    private static final String COMMAND_MATCH = "match";
+    private static final String COMMAND_COLOR = "color";
+    private static final String COMMAND_FRAMES = "frames";
 
     /**
      * Holds the command string that caused the exception
@@ -54,6 +62,18 @@ public class FormatException extends Exception {
             case COMMAND_OUTPUT:
                 System.out.println(ERROR_OUTPUT_FORMAT);
                 break;
+            case COMMAND_THREADS:
+                System.out.println(ERROR_THREADS_FORMAT);
+                break;
+            case COMMAND_MATCH:
+                System.out.println(ERROR_MATCH_FORMAT);
+                break;
+            case COMMAND_COLOR:
+                System.out.println(ERROR_COLOR_FORMAT);
+                break;
+            case COMMAND_FRAMES:
+                System.out.println(ERROR_FRAMES_FORMAT);
+                break;
             default:
                 // Default case to handle any unexpected command strings
                 System.out.println(ERROR_UNKNOWN_COMMAND_FORMAT);
@@ -10,4 +10,15 @@ public interface AsciiOutput {
      * Output the specified 2D array of chars
      */
     void out(char[][] chars);
+
+    /**
+     * Output the specified 2D array of chars, each drawn in its color.
+     * Outputs that cannot show color output the chars alone.
+     *
+     * @param chars  The chars to output.
+     * @param colors The color of each char, packed as 0xRRGGBB, of the same shape as chars.
+     */
+    default void out(char[][] chars, int[][] colors) {
+        out(chars);
+    }
 }
@@ -1,16 +1,92 @@
 package ascii_output;
 
+import java.nio.charset.Charset;
+
 /**
  * Output a 2D array of chars to the console.
+ * Each frame is encoded into a buffer that is reused between frames, and written to the
+ * console in a single bulk write. Colored chars are drawn with ANSI 24-bit color escapes,
+ * one escape per run of near-identical colors.
  * @author Dan Nirel
  */public class ConsoleAsciiOutput implements AsciiOutput{
+    private static final byte SEPARATOR = ' ';
+    private static final int MAX_ASCII = 0x7F;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    private static final byte[] COLOR_START = "\033[38;2;".getBytes();
+    private static final byte COLOR_END = 'm';
+    private static final byte[] COLOR_RESET = "\033[0m".getBytes();
+    // longest color escape, "\033[38;2;255;255;255m"
+    private static final int MAX_COLOR_LENGTH = 19;
+    // most bytes a single char takes in the console's encoding
+    private static final int MAX_CHAR_LENGTH =
+            (int) Math.ceil(Charset.defaultCharset().newEncoder().maxBytesPerChar());
+
+    private byte[] buffer = new byte[0];
+
     @Override
     public void out(char[][] chars) {
+        out(chars, null);
+    }
+
+    @Override
+    public void out(char[][] chars, int[][] colors) {
+        int length = 0;
+        // Start with no run, so the first char always sets its color
+        boolean inRun = false;
+        int runColor = 0;
         for (int y = 0; y < chars.length ; y++) {
+            // Grow the buffer to fit the row if it is the widest seen yet, sized for the longest
+            // encoding of every cell so no char needs to grow it
+            int maxCellLength = MAX_CHAR_LENGTH + 1 + (colors == null ? 0 : MAX_COLOR_LENGTH);
+            ensureCapacity(length + chars[y].length * maxCellLength + LINE_SEPARATOR.length);
             for (int x = 0; x < chars[y].length; x++) {
-                System.out.print(chars[y][x] + " ");
+                // A space shows no color, so it joins any run
+                char c = chars[y][x];
+                if (colors != null && c != ' ' && !(inRun && OutputColors.isInRun(runColor, colors[y][x]))) {
+                    runColor = colors[y][x];
+                    inRun = true;
+                    System.arraycopy(COLOR_START, 0, buffer, length, COLOR_START.length);
+                    length = OutputColors.writeDecimal(runColor, buffer, length + COLOR_START.length);
+                    buffer[length++] = COLOR_END;
+                }
+                if (c <= MAX_ASCII) {
+                    buffer[length++] = (byte) c;
+                } else {
+                    length = appendEncoded(c, length);
+                }
+                buffer[length++] = SEPARATOR;
             }
-            System.out.println();
+            System.arraycopy(LINE_SEPARATOR, 0, buffer, length, LINE_SEPARATOR.length);
+            length += LINE_SEPARATOR.length;
+        }
+        if (colors != null) {
+            ensureCapacity(length + COLOR_RESET.length);
+            System.arraycopy(COLOR_RESET, 0, buffer, length, COLOR_RESET.length);
+            length += COLOR_RESET.length;
+        }
+        System.out.write(buffer, 0, length);
+        System.out.flush();
+    }
+
+    /**
+     * Appends a non-ASCII char to the buffer in the console's encoding. The buffer was sized
+     * for the longest encoding of every cell of the row.
+     *
+     * @param c      The char to append.
+     * @param length The number of bytes already in the buffer.
+     * @return The number of bytes in the buffer after the char.
+     */
+    private int appendEncoded(char c, int length) {
+        byte[] encoded = String.valueOf(c).getBytes(Charset.defaultCharset());
+        System.arraycopy(encoded, 0, buffer, length, encoded.length);
+        return length + encoded.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, buffer.length);
+            buffer = grown;
         }
     }
 }
@@ -0,0 +1,164 @@
+package ascii_output;
+
+import java.nio.charset.Charset;
+
+/**
+ * Output 2D arrays of chars to an ANSI terminal as frames of an animation, redrawing only
+ * what changed. The first frame, and any frame of a different size, clears the screen and is
+ * drawn whole; after that, each frame moves the cursor to every run of changed cells and
+ * rewrites just that run. Runs separated by a few unchanged cells are merged, as rewriting
+ * those cells is shorter than another cursor move. Each frame is written in a single write.
+ */
+public class DeltaConsoleAsciiOutput implements AsciiOutput {
+    private static final byte SEPARATOR = ' ';
+    private static final int MAX_ASCII = 0x7F;
+    // terminal columns taken by each cell, the char and its separator
+    private static final int CELL_WIDTH = 2;
+    // longest unchanged gap rewritten to merge two runs, shorter than a cursor move
+    private static final int MAX_MERGED_GAP = 3;
+    // longest cursor move, "\033[65535;65535H"
+    private static final int MAX_MOVE_LENGTH = 14;
+    private static final byte[] CLEAR_SCREEN = "\033[H\033[2J".getBytes();
+    private static final byte[] LINE_SEPARATOR = "\r\n".getBytes();
+
+    private char[][] previous;
+    private byte[] buffer = new byte[0];
+    private int length;
+
+    @Override
+    public void out(char[][] chars) {
+        length = 0;
+        if (!isSameShape(chars)) {
+            drawAll(chars);
+        } else {
+            drawChanges(chars);
+        }
+
+        // Leave the cursor under the art, where the next prompt is printed
+        ensureCapacity(length + MAX_MOVE_LENGTH);
+        appendMove(chars.length, 0);
+        System.out.write(buffer, 0, length);
+        System.out.flush();
+    }
+
+    /**
+     * Forgets the previous frame, so the next frame is drawn whole. Call this when something
+     * else was written to the terminal since the last frame.
+     */
+    public void reset() {
+        previous = null;
+    }
+
+    private boolean isSameShape(char[][] chars) {
+        if (previous == null || previous.length != chars.length) {
+            return false;
+        }
+        for (int y = 0; y < chars.length; y++) {
+            if (previous[y].length != chars[y].length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clears the screen and draws a whole frame, remembering it as the previous frame.
+     */
+    private void drawAll(char[][] chars) {
+        append(CLEAR_SCREEN);
+        previous = new char[chars.length][];
+        for (int y = 0; y < chars.length; y++) {
+            appendCells(chars[y], 0, chars[y].length);
+            append(LINE_SEPARATOR);
+            previous[y] = chars[y].clone();
+        }
+    }
+
+    /**
+     * Draws the runs of cells that differ from the previous frame, and updates it.
+     */
+    private void drawChanges(char[][] chars) {
+        for (int y = 0; y < chars.length; y++) {
+            char[] row = chars[y];
+            char[] previousRow = previous[y];
+            int x = 0;
+            while (x < row.length) {
+                if (row[x] == previousRow[x]) {
+                    x++;
+                    continue;
+                }
+
+                // Extend the run over changed cells and short unchanged gaps
+                int runStart = x;
+                int runEnd = x + 1;
+                for (int next = runEnd; next < row.length && next - runEnd <= MAX_MERGED_GAP; next++) {
+                    if (row[next] != previousRow[next]) {
+                        runEnd = next + 1;
+                    }
+                }
+
+                ensureCapacity(length + MAX_MOVE_LENGTH);
+                appendMove(y, runStart * CELL_WIDTH);
+                appendCells(row, runStart, runEnd);
+                System.arraycopy(row, runStart, previousRow, runStart, runEnd - runStart);
+                x = runEnd;
+            }
+        }
+    }
+
+    /**
+     * Appends a cursor move to a zero-based row and column of the terminal.
+     */
+    private void appendMove(int row, int column) {
+        buffer[length++] = '\033';
+        buffer[length++] = '[';
+        appendNumber(row + 1);
+        buffer[length++] = ';';
+        appendNumber(column + 1);
+        buffer[length++] = 'H';
+    }
+
+    private void appendNumber(int number) {
+        int digits = 1;
+        for (int rest = number / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1, rest = number; i >= 0; i--, rest /= 10) {
+            buffer[length + i] = (byte) ('0' + rest % 10);
+        }
+        length += digits;
+    }
+
+    /**
+     * Appends a range of cells of a row, each followed by its separator, as the console output
+     * draws them.
+     */
+    private void appendCells(char[] row, int from, int to) {
+        ensureCapacity(length + (to - from) * CELL_WIDTH);
+        for (int x = from; x < to; x++) {
+            char c = row[x];
+            if (c <= MAX_ASCII) {
+                buffer[length++] = (byte) c;
+            } else {
+                append(String.valueOf(c).getBytes(Charset.defaultCharset()));
+                // The range was sized for one byte per char, make room for the rest of it
+                ensureCapacity(length + (to - x) * CELL_WIDTH);
+            }
+            buffer[length++] = SEPARATOR;
+        }
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(length + bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
@@ -1,63 +1,299 @@
 package ascii_output;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Output a 2D array of chars to an HTML file viewable in a web browser.
+ * The page is encoded into a byte buffer that is reused between frames and written at once.
+ * In compact mode the page is gzip-encoded into a ".gz" file, which browsers and HTTP servers
+ * can serve as is; repeated runs of chars compress to a few bytes each.
+ * Colored chars are drawn in the 216 web-safe colors, one short tag per run of chars of about the
+ * same color. Each color used is named by a CSS class defined once in the page's style, and the
+ * colors used by the most runs get the shortest names.
  * @author Dan Nirel
  */
 public class HtmlAsciiOutput implements AsciiOutput {
     private static final double BASE_LINE_SPACING = 0.8;
     private static final double BASE_FONT_SIZE = 150.0;
+    private static final String GZIP_EXTENSION = ".gz";
+    private static final int MAX_ASCII = 0x7F;
+    // longest escape written for a single char, "&#65535;"
+    private static final int MAX_ESCAPE_LENGTH = 8;
+    private static final byte[] ESCAPE_LT = "&lt;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ESCAPE_GT = "&gt;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ESCAPE_AMP = "&amp;".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RUN_START = "<i class=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte RUN_START_END = '>';
+    private static final byte[] RUN_END = "</i>".getBytes(StandardCharsets.US_ASCII);
+    // letters of the color class names, which are one or two letters long
+    private static final String NAME_LETTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    // longest run markup added before a char, closing the previous run and opening its own
+    private static final int MAX_RUN_LENGTH = 16;
+    static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    static final byte[] FOOTER = (
+            "</p>\n"+
+            "</body>\n"+
+            "</html>\n").getBytes(StandardCharsets.US_ASCII);
 
     private final String fontName;
     private final String filename;
+    private final boolean compact;
+    private byte[] buffer = new byte[0];
+    private int length;
+    // the runs of the colored frame being output: the ordinal of each run's first cell, counted
+    // row after row, and its palette index; reused between frames
+    private int[] runStarts = new int[0];
+    private int[] runIndices = new int[0];
+    private int runCount;
 
     public HtmlAsciiOutput(String filename, String fontName) {
+        this(filename, fontName, false);
+    }
+
+    /**
+     * Constructs an HTML output.
+     *
+     * @param filename The file to write, ".gz" is appended to it in compact mode.
+     * @param fontName The font the page is displayed in.
+     * @param compact  Whether to gzip-encode the page.
+     */
+    public HtmlAsciiOutput(String filename, String fontName, boolean compact) {
         this.fontName = fontName;
-        this.filename = filename;
+        this.filename = compact ? filename + GZIP_EXTENSION : filename;
+        this.compact = compact;
     }
 
     @Override
     public void out(char[][] chars) {
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            writer.write(String.format(
-                "<!DOCTYPE html>\n"+
-                "<html>\n"+
-                "<body style=\""+
-                    "\tCOLOR:#000000;"+
-                    "\tTEXT-ALIGN:center;"+
-                    "\tFONT-SIZE:1px;\">\n"+
-                "<p style=\""+
-                    "\twhite-space:pre;"+
-                    "\tFONT-FAMILY:%s;"+
-                    "\tFONT-SIZE:%frem;"+
-                    "\tLETTER-SPACING:0.15em;"+
-                    "\tLINE-HEIGHT:%fem;\">\n",
-                    fontName, BASE_FONT_SIZE/chars[0].length, BASE_LINE_SPACING));
-
-            for(int y = 0 ; y < chars.length ; y++) {
-                for (int x = 0; x < chars[y].length ; x++) {
-                    String htmlRep;
-                    switch(chars[y][x]) {
-                        case '<': htmlRep = "&lt;";  break;
-                        case '>': htmlRep = "&gt;";  break;
-                        case '&': htmlRep = "&amp;"; break;
-                        default:  htmlRep = String.valueOf(chars[y][x]);
+        out(chars, null);
+    }
+
+    @Override
+    public void out(char[][] chars, int[][] colors) {
+        length = 0;
+        runCount = 0;
+        byte[][] classNames = null;
+        if (colors != null) {
+            findRuns(chars, colors);
+            classNames = nameRunColors();
+        }
+        append(header(fontName, chars[0].length, classNames == null ? "" : style(classNames)));
+
+        int cell = 0;
+        int run = 0;
+        for(int y = 0 ; y < chars.length ; y++) {
+            // Reserve room for the row as if every char were escaped and started a run
+            int maxCharLength = colors == null ? MAX_ESCAPE_LENGTH : MAX_ESCAPE_LENGTH + MAX_RUN_LENGTH;
+            ensureCapacity(length + chars[y].length * maxCharLength + LINE_SEPARATOR.length);
+            for (int x = 0; x < chars[y].length ; x++, cell++) {
+                if (run < runCount && runStarts[run] == cell) {
+                    if (run > 0) {
+                        appendUnchecked(RUN_END);
                     }
-                    writer.write(htmlRep);
+                    appendUnchecked(RUN_START);
+                    appendUnchecked(classNames[runIndices[run++]]);
+                    buffer[length++] = RUN_START_END;
                 }
-                writer.newLine();
+                length = writeChar(chars[y][x], buffer, length);
             }
-            writer.write(
-                "</p>\n"+
-                "</body>\n"+
-                "</html>\n");
+            appendUnchecked(LINE_SEPARATOR);
+        }
+        if (runCount > 0) {
+            append(RUN_END);
+        }
+        append(FOOTER);
+
+        try(OutputStream file = new FileOutputStream(filename);
+            OutputStream writer = compact ? new GZIPOutputStream(file) : file) {
+            writer.write(buffer, 0, length);
         } catch(IOException e) {
             Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
         }
     }
+
+    /**
+     * Splits the art into runs of chars drawn in one palette color. A run goes on across rows
+     * until a char's color is too far from the run's palette color.
+     *
+     * @param chars  The chars to output.
+     * @param colors The color of each char.
+     */
+    private void findRuns(char[][] chars, int[][] colors) {
+        int runColor = 0;
+        int cell = 0;
+        for (int y = 0; y < chars.length; y++) {
+            for (int x = 0; x < chars[y].length; x++, cell++) {
+                // A space shows no color, so it joins any run
+                if (chars[y][x] != ' ' && !(runCount > 0 && OutputColors.isInPaletteRun(runColor, colors[y][x]))) {
+                    if (runCount == runStarts.length) {
+                        runStarts = Arrays.copyOf(runStarts, Math.max(runCount * 2, chars[y].length));
+                        runIndices = Arrays.copyOf(runIndices, runStarts.length);
+                    }
+                    int runIndex = OutputColors.toPalette(colors[y][x]);
+                    runColor = OutputColors.paletteColor(runIndex);
+                    runStarts[runCount] = cell;
+                    runIndices[runCount++] = runIndex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Names the palette colors of the runs, shortest names first for the colors of the most runs.
+     *
+     * @return The class name of each palette color, null for the colors no run uses.
+     */
+    private byte[][] nameRunColors() {
+        int[] runCounts = new int[OutputColors.PALETTE_SIZE];
+        for (int run = 0; run < runCount; run++) {
+            runCounts[runIndices[run]]++;
+        }
+
+        Integer[] byCount = new Integer[runCounts.length];
+        Arrays.setAll(byCount, i -> i);
+        Arrays.sort(byCount, (a, b) -> Integer.compare(runCounts[b], runCounts[a]));
+        byte[][] names = new byte[runCounts.length][];
+        int letters = NAME_LETTERS.length();
+        for (int rank = 0; rank < byCount.length && runCounts[byCount[rank]] > 0; rank++) {
+            String name = rank < letters
+                    ? NAME_LETTERS.substring(rank, rank + 1)
+                    : "" + NAME_LETTERS.charAt(rank / letters - 1) + NAME_LETTERS.charAt(rank % letters);
+            names[byCount[rank]] = name.getBytes(StandardCharsets.US_ASCII);
+        }
+        return names;
+    }
+
+    /**
+     * Builds the page's head, defining a class for every named palette color.
+     */
+    private static String style(byte[][] classNames) {
+        StringBuilder style = new StringBuilder("<head><style>");
+        for (int index = 0; index < classNames.length; index++) {
+            if (classNames[index] != null) {
+                style.append('.').append(new String(classNames[index], StandardCharsets.US_ASCII))
+                        .append("{color:").append(OutputColors.toCssColor(index)).append('}');
+            }
+        }
+        return style.append("</style></head>\n").toString();
+    }
+
+    /**
+     * Builds the page's header, up to the start of the art.
+     *
+     * @param fontName The font the page is displayed in.
+     * @param columns  The number of chars in each row of the art.
+     * @return The encoded header.
+     */
+    static byte[] header(String fontName, int columns) {
+        return header(fontName, columns, "");
+    }
+
+    /**
+     * Builds the page's header with a head element, up to the start of the art.
+     *
+     * @param fontName The font the page is displayed in.
+     * @param columns  The number of chars in each row of the art.
+     * @param head     The page's head element, or an empty string for none.
+     * @return The encoded header.
+     */
+    private static byte[] header(String fontName, int columns, String head) {
+        return String.format(
+            "<!DOCTYPE html>\n"+
+            "<html>\n"+
+            "%s"+
+            "<body style=\""+
+                "\tCOLOR:#000000;"+
+                "\tTEXT-ALIGN:center;"+
+                "\tFONT-SIZE:1px;\">\n"+
+            "<p style=\""+
+                "\twhite-space:pre;"+
+                "\tFONT-FAMILY:%s;"+
+                "\tFONT-SIZE:%frem;"+
+                "\tLETTER-SPACING:0.15em;"+
+                "\tLINE-HEIGHT:%fem;\">\n",
+                head, fontName, BASE_FONT_SIZE/columns, BASE_LINE_SPACING).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a char of the art, escaped for HTML. Non-ASCII chars are written as numeric
+     * character references, keeping the page ASCII.
+     *
+     * @param c      The char to write.
+     * @param buffer The buffer to write into, with room for charLength(c) bytes.
+     * @param offset The offset to write at.
+     * @return The offset after the written bytes.
+     */
+    static int writeChar(char c, byte[] buffer, int offset) {
+        switch(c) {
+            case '<': return writeBytes(ESCAPE_LT, buffer, offset);
+            case '>': return writeBytes(ESCAPE_GT, buffer, offset);
+            case '&': return writeBytes(ESCAPE_AMP, buffer, offset);
+            default:
+                if (c <= MAX_ASCII) {
+                    buffer[offset] = (byte) c;
+                    return offset + 1;
+                }
+        }
+        buffer[offset++] = '&';
+        buffer[offset++] = '#';
+        int digits = countDigits(c);
+        for (int i = digits - 1, rest = c; i >= 0; i--, rest /= 10) {
+            buffer[offset + i] = (byte) ('0' + rest % 10);
+        }
+        offset += digits;
+        buffer[offset++] = ';';
+        return offset;
+    }
+
+    /**
+     * Gets the number of bytes writeChar writes for a char.
+     *
+     * @param c The char to measure.
+     * @return The length of the char's escaped form.
+     */
+    static int charLength(char c) {
+        switch(c) {
+            case '<': return ESCAPE_LT.length;
+            case '>': return ESCAPE_GT.length;
+            case '&': return ESCAPE_AMP.length;
+            default:  return c <= MAX_ASCII ? 1 : countDigits(c) + 3;
+        }
+    }
+
+    private static int countDigits(char c) {
+        int digits = 1;
+        for (int rest = c / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int writeBytes(byte[] bytes, byte[] buffer, int offset) {
+        System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(length + bytes.length);
+        appendUnchecked(bytes);
+    }
+
+    private void appendUnchecked(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
 }
@@ -0,0 +1,188 @@
+package ascii_output;
+
+import image.ParallelLoop;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Output a 2D array of chars to a file through memory-mapped regions, for very large canvases.
+ * The exact size of the file is computed first, then ranges of rows are encoded in parallel,
+ * each straight into its own mapped region of the file. The file is either plain text, laid out
+ * as on the console and encoded in UTF-8, or an HTML page as written by HtmlAsciiOutput.
+ */
+public class MappedAsciiOutput implements AsciiOutput {
+    private static final byte SEPARATOR = ' ';
+    private static final byte UNMAPPABLE = '?';
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+    // largest region mapped at once, well below the 2GB limit of a mapped buffer
+    private static final long MAX_REGION_SIZE = 1L << 28;
+
+    private final String filename;
+    // null for plain text
+    private final String fontName;
+
+    /**
+     * Constructs an output writing plain text.
+     *
+     * @param filename The file to write.
+     */
+    public MappedAsciiOutput(String filename) {
+        this(filename, null);
+    }
+
+    /**
+     * Constructs an output writing an HTML page.
+     *
+     * @param filename The file to write.
+     * @param fontName The font the page is displayed in.
+     */
+    public MappedAsciiOutput(String filename, String fontName) {
+        this.filename = filename;
+        this.fontName = fontName;
+    }
+
+    @Override
+    public void out(char[][] chars) {
+        try {
+            write(chars);
+        } catch (IOException e) {
+            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        }
+    }
+
+    /**
+     * Writes a 2D array of chars to the file, like out, but reports a failed write to the caller.
+     *
+     * @param chars The chars to output.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(char[][] chars) throws IOException {
+        byte[] header = fontName == null ? new byte[0] : HtmlAsciiOutput.header(fontName, chars[0].length);
+        byte[] footer = fontName == null ? new byte[0] : HtmlAsciiOutput.FOOTER;
+
+        // The offset of every row in the file, from the exact encoded length of each row
+        long[] rowOffsets = new long[chars.length + 1];
+        ParallelLoop.forRange(chars.length, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                rowOffsets[y + 1] = rowLength(chars[y]);
+            }
+        });
+        rowOffsets[0] = header.length;
+        for (int y = 0; y < chars.length; y++) {
+            rowOffsets[y + 1] += rowOffsets[y];
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw");
+             FileChannel channel = file.getChannel()) {
+            file.setLength(rowOffsets[chars.length] + footer.length);
+            channel.write(ByteBuffer.wrap(header), 0);
+            channel.write(ByteBuffer.wrap(footer), rowOffsets[chars.length]);
+            ParallelLoop.forRange(chars.length, (from, to) -> writeRows(channel, chars, rowOffsets, from, to));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Encodes a range of rows into mapped regions of the file, one region per run of rows
+     * that fits in MAX_REGION_SIZE.
+     *
+     * @param channel    The channel of the file, already of its final size.
+     * @param chars      The chars to output.
+     * @param rowOffsets The offset of every row in the file, and the offset after the last row.
+     * @param from       The first row to write.
+     * @param to         The row after the last row to write.
+     */
+    private void writeRows(FileChannel channel, char[][] chars, long[] rowOffsets, int from, int to) {
+        byte[] row = new byte[0];
+        int regionStart = from;
+        while (regionStart < to) {
+            int regionEnd = regionStart + 1;
+            while (regionEnd < to && rowOffsets[regionEnd + 1] - rowOffsets[regionStart] <= MAX_REGION_SIZE) {
+                regionEnd++;
+            }
+
+            MappedByteBuffer region;
+            try {
+                region = channel.map(FileChannel.MapMode.READ_WRITE, rowOffsets[regionStart],
+                        rowOffsets[regionEnd] - rowOffsets[regionStart]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (int y = regionStart; y < regionEnd; y++) {
+                int length = (int) (rowOffsets[y + 1] - rowOffsets[y]);
+                if (row.length < length) {
+                    row = new byte[length];
+                }
+                encodeRow(chars[y], row);
+                region.put(row, 0, length);
+            }
+            regionStart = regionEnd;
+        }
+    }
+
+    /**
+     * Gets the exact number of bytes a row is encoded into.
+     *
+     * @param chars The row of chars.
+     * @return The encoded length of the row, including its line separator.
+     */
+    private long rowLength(char[] chars) {
+        long length = LINE_SEPARATOR.length;
+        for (char c : chars) {
+            length += fontName == null ? textLength(c) + 1 : HtmlAsciiOutput.charLength(c);
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a row into a buffer with room for its rowLength bytes.
+     */
+    private void encodeRow(char[] chars, byte[] buffer) {
+        int offset = 0;
+        for (char c : chars) {
+            if (fontName == null) {
+                offset = writeText(c, buffer, offset);
+                buffer[offset++] = SEPARATOR;
+            } else {
+                offset = HtmlAsciiOutput.writeChar(c, buffer, offset);
+            }
+        }
+        System.arraycopy(LINE_SEPARATOR, 0, buffer, offset, LINE_SEPARATOR.length);
+    }
+
+    /**
+     * Gets the length of a char in UTF-8, a lone surrogate is written as '?'.
+     */
+    private static int textLength(char c) {
+        if (c < 0x80 || Character.isSurrogate(c)) {
+            return 1;
+        }
+        return c < 0x800 ? 2 : 3;
+    }
+
+    /**
+     * Writes a char in UTF-8, a lone surrogate is written as '?'.
+     */
+    static int writeText(char c, byte[] buffer, int offset) {
+        if (c < 0x80) {
+            buffer[offset++] = (byte) c;
+        } else if (Character.isSurrogate(c)) {
+            buffer[offset++] = UNMAPPABLE;
+        } else if (c < 0x800) {
+            buffer[offset++] = (byte) (0xC0 | (c >> 6));
+            buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            buffer[offset++] = (byte) (0xE0 | (c >> 12));
+            buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,131 @@
+package ascii_output;
+
+/**
+ * Helpers shared by the outputs that draw chars in color.
+ * Colors are packed as 0xRRGGBB. The HTML output draws in a palette of the 216 web-safe colors,
+ * each channel one of six levels, so every palette color is a three-digit CSS color.
+ */
+class OutputColors {
+    // largest difference in any channel between colors drawn as one run
+    private static final int RUN_TOLERANCE = 24;
+    private static final int CHANNEL_MASK = 0xFF;
+    private static final int BITS_PER_CHANNEL = 8;
+    private static final int CHANNELS = 3;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int PALETTE_LEVELS = 6;
+    static final int PALETTE_SIZE = PALETTE_LEVELS * PALETTE_LEVELS * PALETTE_LEVELS;
+    // channel difference between two palette levels, 0x33
+    private static final int PALETTE_STEP = CHANNEL_MASK / (PALETTE_LEVELS - 1);
+    // hex digit of a palette level, 0x33 being "3" in a three-digit CSS color
+    private static final int PALETTE_HEX_STEP = PALETTE_STEP / 0x11;
+    // largest difference in any channel between a color and the palette color of the run it joins
+    private static final int PALETTE_RUN_TOLERANCE = 40;
+
+    private OutputColors() {
+    }
+
+    /**
+     * Checks whether a color is close enough to a run's color to be drawn as part of the run.
+     * Colors are compared with the color the run started with, so a run cannot drift slowly
+     * into a different color.
+     *
+     * @param runColor The color the run is drawn in.
+     * @param color    The color of the next char.
+     * @return true if the char can join the run.
+     */
+    static boolean isInRun(int runColor, int color) {
+        return isWithin(runColor, color, RUN_TOLERANCE);
+    }
+
+    /**
+     * Checks whether a color can be drawn as part of a run drawn in a palette color. The
+     * tolerance is wider than half the step between palette levels, so every color nearest to
+     * the run's palette color joins it, and a run carries on through colors near the boundary
+     * between two palette colors.
+     *
+     * @param runColor The palette color the run is drawn in, see paletteColor.
+     * @param color    The color of the next char.
+     * @return true if the char can join the run.
+     */
+    static boolean isInPaletteRun(int runColor, int color) {
+        return isWithin(runColor, color, PALETTE_RUN_TOLERANCE);
+    }
+
+    private static boolean isWithin(int first, int second, int tolerance) {
+        for (int shift = 0; shift < CHANNELS * BITS_PER_CHANNEL; shift += BITS_PER_CHANNEL) {
+            int diff = ((first >> shift) & CHANNEL_MASK) - ((second >> shift) & CHANNEL_MASK);
+            if (Math.abs(diff) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the index of the palette color nearest to a color.
+     *
+     * @param color The color.
+     * @return The palette index, from 0 to PALETTE_SIZE - 1.
+     */
+    static int toPalette(int color) {
+        int index = 0;
+        for (int shift = (CHANNELS - 1) * BITS_PER_CHANNEL; shift >= 0; shift -= BITS_PER_CHANNEL) {
+            int channel = (color >> shift) & CHANNEL_MASK;
+            index = index * PALETTE_LEVELS + (channel + PALETTE_STEP / 2) / PALETTE_STEP;
+        }
+        return index;
+    }
+
+    /**
+     * Gets a palette color, packed as 0xRRGGBB.
+     *
+     * @param index The palette index.
+     * @return The palette color.
+     */
+    static int paletteColor(int index) {
+        int color = 0;
+        for (int level = PALETTE_SIZE / PALETTE_LEVELS; level > 0; level /= PALETTE_LEVELS) {
+            color = (color << BITS_PER_CHANNEL) | (index / level % PALETTE_LEVELS) * PALETTE_STEP;
+        }
+        return color;
+    }
+
+    /**
+     * Gets a palette color as a three-digit CSS color, such as "#f93".
+     *
+     * @param index The palette index.
+     * @return The CSS color.
+     */
+    static String toCssColor(int index) {
+        StringBuilder css = new StringBuilder("#");
+        for (int level = PALETTE_SIZE / PALETTE_LEVELS; level > 0; level /= PALETTE_LEVELS) {
+            css.append(HEX_DIGITS[(index / level % PALETTE_LEVELS) * PALETTE_HEX_STEP]);
+        }
+        return css.toString();
+    }
+
+    /**
+     * Writes a color's channels in decimal, separated by semicolons, as in an ANSI escape.
+     *
+     * @param color  The color to write.
+     * @param buffer The buffer to write into, with room for 11 bytes.
+     * @param offset The offset to write at.
+     * @return The offset after the written bytes.
+     */
+    static int writeDecimal(int color, byte[] buffer, int offset) {
+        for (int shift = (CHANNELS - 1) * BITS_PER_CHANNEL; shift >= 0; shift -= BITS_PER_CHANNEL) {
+            int channel = (color >> shift) & CHANNEL_MASK;
+            if (channel >= 100) {
+                buffer[offset++] = (byte) ('0' + channel / 100);
+            }
+            if (channel >= 10) {
+                buffer[offset++] = (byte) ('0' + channel / 10 % 10);
+            }
+            buffer[offset++] = (byte) ('0' + channel % 10);
+            if (shift > 0) {
+                buffer[offset++] = ';';
+            }
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,92 @@
+package ascii_output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Output a 2D array of chars to a stream, such as a network response, as plain text laid out as
+ * on the console with "\n" line endings and encoded in UTF-8, or as the HTML page HtmlAsciiOutput
+ * writes.
+ * Each row is encoded into a buffer reused between rows and written as soon as it is ready, so
+ * the output starts before the whole frame is encoded.
+ */
+public class StreamAsciiOutput implements AsciiOutput {
+    private static final byte SEPARATOR = ' ';
+    private static final byte[] LINE_SEPARATOR = "\n".getBytes();
+    // longest encoding of a single char, "&#65535;" in HTML or 3 bytes of UTF-8 and a separator
+    private static final int MAX_CHAR_LENGTH = 8;
+
+    private final OutputStream stream;
+    // null for plain text
+    private final String fontName;
+    private byte[] row = new byte[0];
+
+    /**
+     * Constructs an output writing plain text.
+     *
+     * @param stream The stream to write to, which is flushed but not closed.
+     */
+    public StreamAsciiOutput(OutputStream stream) {
+        this(stream, null);
+    }
+
+    /**
+     * Constructs an output writing an HTML page.
+     *
+     * @param stream   The stream to write to, which is flushed but not closed.
+     * @param fontName The font the page is displayed in.
+     */
+    public StreamAsciiOutput(OutputStream stream, String fontName) {
+        this.stream = stream;
+        this.fontName = fontName;
+    }
+
+    /**
+     * Writes the chars to the stream.
+     *
+     * @param chars The chars to output.
+     * @throws UncheckedIOException If writing to the stream fails.
+     */
+    @Override
+    public void out(char[][] chars) {
+        try {
+            if (fontName != null) {
+                stream.write(HtmlAsciiOutput.header(fontName, chars[0].length));
+            }
+            for (int y = 0; y < chars.length; y++) {
+                int length = encodeRow(chars[y]);
+                stream.write(row, 0, length);
+            }
+            if (fontName != null) {
+                stream.write(HtmlAsciiOutput.FOOTER);
+            }
+            stream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes a row into the row buffer.
+     *
+     * @return The number of encoded bytes.
+     */
+    private int encodeRow(char[] chars) {
+        int capacity = chars.length * MAX_CHAR_LENGTH + LINE_SEPARATOR.length;
+        if (row.length < capacity) {
+            row = new byte[capacity];
+        }
+        int length = 0;
+        for (char c : chars) {
+            if (fontName == null) {
+                length = MappedAsciiOutput.writeText(c, row, length);
+                row[length++] = SEPARATOR;
+            } else {
+                length = HtmlAsciiOutput.writeChar(c, row, length);
+            }
+        }
+        System.arraycopy(LINE_SEPARATOR, 0, row, length, LINE_SEPARATOR.length);
+        return length + LINE_SEPARATOR.length;
+    }
+}
@@ -0,0 +1,106 @@
+package image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, thread-safe cache of tile brightness grids, keyed by image identity and
+ * resolution. When the total number of cached cells exceeds the bound, the least recently
+ * used grids are evicted. Cached grids are shared between callers and must not be modified.
+ */
+public class BrightnessCache {
+
+    private final long maxCells;
+    private final LinkedHashMap<Key, double[][]> grids = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedCells;
+
+    /**
+     * Constructs an empty brightness cache.
+     *
+     * @param maxCells The maximum total number of grid cells to keep.
+     */
+    public BrightnessCache(long maxCells) {
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * Gets the cached brightness grid of an image at a resolution, computing and caching it
+     * if absent. The computation runs outside the cache's lock, so concurrent lookups of other
+     * grids are not blocked by it.
+     *
+     * @param imageKey The identity of the image, see {@link Image#getIdentity()}.
+     * @param res      The resolution of the grid.
+     * @param loader   Computes the grid if it is not cached.
+     * @return The brightness grid.
+     */
+    public double[][] computeIfAbsent(String imageKey, int res, Supplier<double[][]> loader) {
+        Key key = new Key(imageKey, res);
+        double[][] grid = get(key);
+        if (grid != null) {
+            return grid;
+        }
+        grid = loader.get();
+        return put(key, grid);
+    }
+
+    private synchronized double[][] get(Key key) {
+        return grids.get(key);
+    }
+
+    /**
+     * Caches a grid unless another thread cached one for the same key first.
+     *
+     * @return The grid now cached for the key.
+     */
+    private synchronized double[][] put(Key key, double[][] grid) {
+        double[][] existing = grids.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        grids.put(key, grid);
+        cachedCells += cellCount(grid);
+
+        // Evict least recently used grids, keeping at least the one just added
+        Iterator<Map.Entry<Key, double[][]>> iterator = grids.entrySet().iterator();
+        while (cachedCells > maxCells && grids.size() > 1) {
+            Map.Entry<Key, double[][]> eldest = iterator.next();
+            cachedCells -= cellCount(eldest.getValue());
+            iterator.remove();
+        }
+        return grid;
+    }
+
+    private static long cellCount(double[][] grid) {
+        return grid.length == 0 ? 0 : (long) grid.length * grid[0].length;
+    }
+
+    /**
+     * Cache key of an image identity and resolution.
+     */
+    private static class Key {
+        private final String imageKey;
+        private final int res;
+
+        Key(String imageKey, int res) {
+            this.imageKey = imageKey;
+            this.res = res;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return res == other.res && imageKey.equals(other.imageKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(imageKey, res);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package image;
+
+/**
+ * A summed-area table (integral image) of the grey values, or of one color channel, of a
+ * pixel buffer.
+ * Built once per source image, it gives the grey sum of any rectangular region
+ * with four lookups, regardless of the region's size.
+ * Grey values are kept as exact integers (weights scaled by GREY_SCALE), so sums
+ * do not depend on the order in which they were accumulated.
+ * The table holds 32-bit entries that wrap around, 4 bytes per pixel. Wrapped differences
+ * still give the exact sum of any region whose true sum fits in 32 unsigned bits, so larger
+ * regions are summed in chunks small enough for their sums not to wrap.
+ */
+class BrightnessIntegral {
+
+    /**
+     * Scale of the integer grey weights, the weights sum to exactly this value.
+     */
+    static final int GREY_SCALE = 10000;
+
+    /**
+     * Grey value of a white pixel.
+     */
+    static final long WHITE_GREY = 255L * GREY_SCALE;
+
+    private static final int RED_WEIGHT = 2126;
+    private static final int GREEN_WEIGHT = 7152;
+    private static final int BLUE_WEIGHT = 722;
+    /**
+     * Channels a table can sum: the scaled grey value, or a color component from 0 to 255.
+     */
+    static final int CHANNEL_GREY = 0;
+    static final int CHANNEL_RED = 1;
+    static final int CHANNEL_GREEN = 2;
+    static final int CHANNEL_BLUE = 3;
+
+    private static final int RED_SHIFT = 16;
+    private static final int GREEN_SHIFT = 8;
+    private static final int CHANNEL_MASK = 0xFF;
+    // columns per task when summing down columns in parallel, keeps tasks cache friendly
+    private static final int COLUMN_STRIP = 256;
+    // most pixels whose grey or color component sum fits in 32 unsigned bits
+    private static final int MAX_EXACT_GREY_PIXELS = (int) (0xFFFFFFFFL / WHITE_GREY);
+    private static final int MAX_EXACT_COLOR_PIXELS = (int) (0xFFFFFFFFL / CHANNEL_MASK);
+
+    // (height + 1) x (width + 1) table of sums modulo 2^32, row 0 and column 0 are zero
+    private final int[] table;
+    private final int stride;
+    private final int channel;
+    private final int maxExactPixels;
+
+    /**
+     * Builds the summed-area table of a pixel buffer.
+     *
+     * @param pixels The row-major packed RGB pixel buffer.
+     * @param width  The width of the buffer.
+     * @param height The height of the buffer.
+     */
+    BrightnessIntegral(int[] pixels, int width, int height) {
+        this(pixels, width, height, CHANNEL_GREY);
+    }
+
+    /**
+     * Builds the summed-area table of a channel of a pixel buffer.
+     *
+     * @param pixels  The row-major packed RGB pixel buffer.
+     * @param width   The width of the buffer.
+     * @param height  The height of the buffer.
+     * @param channel The channel to sum, one of the CHANNEL constants.
+     */
+    BrightnessIntegral(int[] pixels, int width, int height, int channel) {
+        this.channel = channel;
+        maxExactPixels = channel == CHANNEL_GREY ? MAX_EXACT_GREY_PIXELS : MAX_EXACT_COLOR_PIXELS;
+        stride = width + 1;
+        table = new int[(height + 1) * stride];
+
+        // Sum along each row in parallel, then down each strip of columns in parallel.
+        // Wrapping integer sums do not depend on the order, so the table equals the sequential one.
+        ParallelLoop.forRange(height, (from, to) -> sumRows(pixels, width, from, to));
+        int strips = (width + COLUMN_STRIP - 1) / COLUMN_STRIP;
+        ParallelLoop.forRange(strips, (from, to) -> sumColumns(
+                height, from * COLUMN_STRIP + 1, Math.min(width, to * COLUMN_STRIP) + 1));
+    }
+
+    /**
+     * Fills the table rows of a band of source rows with each row's own prefix sums.
+     *
+     * @param pixels  The row-major packed RGB pixel buffer.
+     * @param width   The width of the buffer.
+     * @param fromRow The first source row of the band.
+     * @param toRow   The row after the last source row of the band.
+     */
+    private void sumRows(int[] pixels, int width, int fromRow, int toRow) {
+        for (int i = fromRow; i < toRow; i++) {
+            int current = (i + 1) * stride + 1;
+            int pixelRow = i * width;
+            int rowSum = 0;
+            for (int j = 0; j < width; j++) {
+                rowSum += value(pixels[pixelRow + j]);
+                table[current + j] = rowSum;
+            }
+        }
+    }
+
+    /**
+     * Adds each table row to the row below it, for a strip of table columns.
+     *
+     * @param height  The height of the buffer.
+     * @param fromCol The first table column of the strip.
+     * @param toCol   The column after the last table column of the strip.
+     */
+    private void sumColumns(int height, int fromCol, int toCol) {
+        for (int i = 2; i <= height; i++) {
+            int above = (i - 1) * stride;
+            int current = i * stride;
+            for (int j = fromCol; j < toCol; j++) {
+                table[current + j] += table[above + j];
+            }
+        }
+    }
+
+    /**
+     * Gets the value of the table's channel of a packed RGB pixel.
+     */
+    private int value(int rgb) {
+        switch (channel) {
+            case CHANNEL_RED:
+                return (rgb >> RED_SHIFT) & CHANNEL_MASK;
+            case CHANNEL_GREEN:
+                return (rgb >> GREEN_SHIFT) & CHANNEL_MASK;
+            case CHANNEL_BLUE:
+                return rgb & CHANNEL_MASK;
+            default:
+                return grey(rgb);
+        }
+    }
+
+    /**
+     * Gets the channel sum of a rectangular region of the source buffer.
+     *
+     * @param top    The first row of the region.
+     * @param left   The first column of the region.
+     * @param bottom The row after the last row of the region.
+     * @param right  The column after the last column of the region.
+     * @return The sum of the channel values of the region's pixels.
+     */
+    long sum(int top, int left, int bottom, int right) {
+        int width = right - left;
+        if ((long) width * (bottom - top) <= maxExactPixels) {
+            return exactSum(top, left, bottom, right);
+        }
+
+        // Split the region into chunks whose sums cannot wrap around
+        int chunkWidth = Math.min(width, maxExactPixels);
+        int chunkHeight = maxExactPixels / chunkWidth;
+        long total = 0;
+        for (int row = top; row < bottom; row += chunkHeight) {
+            int chunkBottom = Math.min(bottom, row + chunkHeight);
+            for (int col = left; col < right; col += chunkWidth) {
+                total += exactSum(row, col, chunkBottom, Math.min(right, col + chunkWidth));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the channel sum of a region of at most maxExactPixels pixels, whose wrapped
+     * difference is the exact sum.
+     */
+    private long exactSum(int top, int left, int bottom, int right) {
+        return Integer.toUnsignedLong(table[bottom * stride + right] - table[top * stride + right]
+                - table[bottom * stride + left] + table[top * stride + left]);
+    }
+
+    /**
+     * Calculates the scaled integer grey value of a packed RGB pixel.
+     *
+     * @param rgb The packed RGB pixel.
+     * @return The grey value, between 0 and WHITE_GREY.
+     */
+    static int grey(int rgb) {
+        return ((rgb >> RED_SHIFT) & CHANNEL_MASK) * RED_WEIGHT
+                + ((rgb >> GREEN_SHIFT) & CHANNEL_MASK) * GREEN_WEIGHT
+                + (rgb & CHANNEL_MASK) * BLUE_WEIGHT;
+    }
+}
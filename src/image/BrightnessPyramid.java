@@ -0,0 +1,184 @@
+package image;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * A mip-map style pyramid of tile brightness grids for one image, one level per
+ * power-of-two resolution. Once a level is built, asking for that resolution again is
+ * a lookup, and each coarser level is built from the finer one by averaging four children.
+ * The image is padded to power-of-two dimensions, as in the ASCII art algorithm.
+ * The pyramid is either built over an image in memory, or over an image file that is
+ * streamed band by band whenever a level cannot be derived from a finer one.
+ */
+public class BrightnessPyramid {
+
+    private static final int CHILDREN_PER_SIDE = 2;
+    private static final double CHILDREN_COUNT = CHILDREN_PER_SIDE * CHILDREN_PER_SIDE;
+
+    // exactly one of the padded image and the streaming reader is set
+    private final Image paddedImage;
+    private final StreamingBrightnessReader streamingReader;
+    private final int paddedWidth;
+    private final int paddedHeight;
+    // levels[k] holds the grid for resolution 2^k, or null if not built yet
+    private final double[][][] levels;
+
+    /**
+     * Constructs an empty brightness pyramid for an image.
+     *
+     * @param image The image to calculate tile brightness for.
+     */
+    public BrightnessPyramid(Image image) {
+        paddedImage = ImageUtils.padImage(image);
+        streamingReader = null;
+        paddedWidth = paddedImage.getWidth();
+        paddedHeight = paddedImage.getHeight();
+        levels = new double[Integer.numberOfTrailingZeros(paddedWidth) + 1][][];
+    }
+
+    /**
+     * Constructs an empty brightness pyramid for an image file that is never fully loaded.
+     *
+     * @param streamingReader The reader of the image file to calculate tile brightness for.
+     */
+    public BrightnessPyramid(StreamingBrightnessReader streamingReader) {
+        this.paddedImage = null;
+        this.streamingReader = streamingReader;
+        paddedWidth = ImageUtils.upperPowerOf2(streamingReader.getWidth());
+        paddedHeight = ImageUtils.upperPowerOf2(streamingReader.getHeight());
+        levels = new double[Integer.numberOfTrailingZeros(paddedWidth) + 1][][];
+    }
+
+    /**
+     * Gets the padded image the pyramid's tiles are taken from.
+     *
+     * @return The padded image, or null if the pyramid streams its image from a file.
+     */
+    public Image getPaddedImage() {
+        return paddedImage;
+    }
+
+    /**
+     * Gets a string identifying the pyramid's image, for use as a cache key.
+     *
+     * @return The identity of the padded image or of the streamed file.
+     */
+    public String getIdentity() {
+        if (paddedImage != null) {
+            return paddedImage.getIdentity();
+        }
+        try {
+            return streamingReader.getIdentity();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Builds the level of the given resolution and every coarser level.
+     *
+     * @param res The finest resolution to build.
+     */
+    public synchronized void buildLevels(int res) {
+        for (int r = res; isLevel(r); r /= CHILDREN_PER_SIDE) {
+            getLevel(r);
+        }
+    }
+
+    /**
+     * Gets the brightness of every tile at the given resolution.
+     * Power-of-two resolutions are cached; the returned grid is shared and must not be modified.
+     *
+     * @param res The number of tiles per row.
+     * @return A 2D array of tile brightness values (0 to 1).
+     * @throws UncheckedIOException If the pyramid streams its image and reading the file fails.
+     */
+    public synchronized double[][] getLevel(int res) {
+        if (!isLevel(res)) {
+            return calcGrid(res);
+        }
+
+        int level = Integer.numberOfTrailingZeros(res);
+        if (levels[level] == null) {
+            // Prefer averaging the finer level when it is already built
+            double[][] finer = level + 1 < levels.length ? levels[level + 1] : null;
+            int rows = paddedHeight / (paddedWidth / res);
+            if (finer != null && finer.length == rows * CHILDREN_PER_SIDE) {
+                double[][] grid = new double[rows][res];
+                averageChildren(finer, grid);
+                levels[level] = grid;
+            } else {
+                levels[level] = calcGrid(res);
+            }
+        }
+        return levels[level];
+    }
+
+    /**
+     * Checks whether a resolution has a pyramid level.
+     *
+     * @param res The number of tiles per row.
+     * @return true if res is a power of two no greater than the padded width.
+     */
+    private boolean isLevel(int res) {
+        return res > 0 && Integer.bitCount(res) == 1 && res <= paddedWidth;
+    }
+
+    /**
+     * Calculates a brightness grid directly from the image, or by streaming the image file.
+     *
+     * @param res The number of tiles per row.
+     * @return A 2D array of tile brightness values.
+     */
+    private double[][] calcGrid(int res) {
+        if (streamingReader != null) {
+            try {
+                return streamingReader.read(res);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        double[][] grid = new double[paddedHeight / (paddedWidth / res)][res];
+        fillFromImage(grid);
+        return grid;
+    }
+
+    /**
+     * Fills a brightness grid from the image's summed-area table.
+     *
+     * @param grid The grid to fill, its row length is the resolution.
+     */
+    private void fillFromImage(double[][] grid) {
+        if (grid.length == 0) {
+            return;
+        }
+        int block = paddedImage.getWidth() / grid[0].length;
+        ParallelLoop.forRange(grid.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                for (int j = 0; j < grid[i].length; j++) {
+                    grid[i][j] = ImageUtils.calcImageBrightness(paddedImage, i * block, j * block, block, block);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fills a brightness grid with the mean of each tile's four children in the finer grid.
+     *
+     * @param finer  The grid of twice the resolution.
+     * @param coarse The grid to fill.
+     */
+    private static void averageChildren(double[][] finer, double[][] coarse) {
+        ParallelLoop.forRange(coarse.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                double[] top = finer[i * CHILDREN_PER_SIDE];
+                double[] bottom = finer[i * CHILDREN_PER_SIDE + 1];
+                for (int j = 0; j < coarse[i].length; j++) {
+                    int col = j * CHILDREN_PER_SIDE;
+                    coarse[i][j] = (top[col] + top[col + 1] + bottom[col] + bottom[col + 1]) / CHILDREN_COUNT;
+                }
+            }
+        });
+    }
+}
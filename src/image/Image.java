@@ -1,19 +1,52 @@
 package image;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.function.IntUnaryOperator;
 
 /**
  * Represents an image with pixel data and provides methods for image manipulation.
+ * An image may be a view over a window of another image's pixels; parts of the window
+ * that fall outside the source pixels read as white.
  */
 public class Image {
 
-    private final Color[][] pixelArray;
+    private static final int WHITE_RGB = 0xFFFFFFFF;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    // pixels digested per update, 64 KB at a time
+    private static final int DIGEST_CHUNK_PIXELS = 1 << 14;
+
+    // packed 0xAARRGGBB pixels, row-major, possibly shared with a parent image
+    private final int[] pixels;
+    // dimensions of the shared pixel buffer
+    private final int sourceWidth;
+    private final int sourceHeight;
+    // position of this image's top-left pixel in the buffer, may lie outside it
+    private final int originX;
+    private final int originY;
     private final int width;
     private final int height;
+    // the image owning the pixel buffer, this image itself unless it is a view
+    private final Image source;
+    // built on first use and shared by every view over the same buffer
+    private volatile BrightnessIntegral brightnessIntegral;
+    // red, green and blue tables, built on first use by colored output
+    private volatile BrightnessIntegral[] colorIntegrals;
+    // identifies the pixels for caching, computed from the file or on first use
+    private volatile String identity;
 
     /**
      * Constructs an Image object from a file.
@@ -22,28 +55,121 @@ public class Image {
      * @throws IOException If an error occurs during file reading.
      */
     public Image(String filename) throws IOException {
-        BufferedImage im = ImageIO.read(new File(filename));
+        this(filename, 1);
+    }
+
+    /**
+     * Constructs an Image object from a file, decoding only every subsampling-th pixel of every
+     * subsampling-th row. The image is then subsampling times smaller along each side.
+     *
+     * @param filename    The path to the image file.
+     * @param subsampling The subsampling factor, 1 to decode every pixel.
+     * @throws IOException If an error occurs during file reading.
+     */
+    public Image(String filename, int subsampling) throws IOException {
+        File file = new File(filename);
+        BufferedImage im = decode(file, subsampling);
         width = im.getWidth();
         height = im.getHeight();
 
+        // Pull all pixels from the raster in one bulk call
+        pixels = im.getRGB(0, 0, width, height, null, 0, width);
+        sourceWidth = width;
+        sourceHeight = height;
+        originX = 0;
+        originY = 0;
+        source = this;
+        identity = file.getCanonicalPath() + ":" + file.lastModified() + ":" + file.length()
+                + (subsampling > 1 ? "/" + subsampling : "");
+    }
 
-        pixelArray = new Color[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                pixelArray[i][j] = new Color(im.getRGB(j, i));
+    /**
+     * Decodes an image file, letting the reader skip pixels when subsampling.
+     *
+     * @param file        The image file.
+     * @param subsampling The subsampling factor, 1 to decode every pixel.
+     * @return The decoded image.
+     * @throws IOException If an error occurs during file reading.
+     */
+    private static BufferedImage decode(File file, int subsampling) throws IOException {
+        try (ImageInputStream in = StreamingBrightnessReader.openStream(file)) {
+            ImageReader reader = StreamingBrightnessReader.getReader(in);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
             }
         }
     }
 
     /**
-     * Constructs an Image object from a pixel array with specified width and height.
+     * Decodes an image from a stream, such as an upload. The subsampling factor is picked from the
+     * image's width once its header is read, so huge images are never decoded at full size. The
+     * decoder keeps the encoded bytes it reads in memory, so callers should bound the stream.
+     *
+     * @param input       The stream to read the encoded image from.
+     * @param subsampling Gives the subsampling factor for the image's width.
+     * @param maxPixels   The largest number of pixels accepted, before subsampling.
+     * @return The decoded image.
+     * @throws IOException If the stream cannot be decoded or the image has too many pixels.
+     */
+    public static Image read(InputStream input, IntUnaryOperator subsampling, long maxPixels)
+            throws IOException {
+        try (ImageInputStream in = new MemoryCacheImageInputStream(input)) {
+            ImageReader reader = StreamingBrightnessReader.getReader(in);
+            try {
+                int width = reader.getWidth(0);
+                if ((long) width * reader.getHeight(0) > maxPixels) {
+                    throw new IOException("Image has more than " + maxPixels + " pixels");
+                }
+                int factor = subsampling.applyAsInt(width);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                BufferedImage im = reader.read(0, param);
+                return new Image(im.getRGB(0, 0, im.getWidth(), im.getHeight(), null, 0, im.getWidth()),
+                        im.getWidth(), im.getHeight());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Constructs an Image object from a packed pixel array with specified width and height.
+     *
+     * @param pixels The row-major packed RGB pixel array representing the image.
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     */
+    public Image(int[] pixels, int width, int height) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        sourceWidth = width;
+        sourceHeight = height;
+        originX = 0;
+        originY = 0;
+        source = this;
+    }
+
+    /**
+     * Constructs a view over a window of another image's pixel buffer.
      *
-     * @param pixelArray The pixel array representing the image.
-     * @param width      The width of the image.
-     * @param height     The height of the image.
+     * @param source  The image owning the pixel buffer.
+     * @param originX The buffer row of the view's top-left pixel.
+     * @param originY The buffer column of the view's top-left pixel.
+     * @param width   The width of the view.
+     * @param height  The height of the view.
      */
-    public Image(Color[][] pixelArray, int width, int height) {
-        this.pixelArray = pixelArray;
+    private Image(Image source, int originX, int originY, int width, int height) {
+        this.pixels = source.pixels;
+        this.sourceWidth = source.sourceWidth;
+        this.sourceHeight = source.sourceHeight;
+        this.source = source;
+        this.originX = originX;
+        this.originY = originY;
         this.width = width;
         this.height = height;
     }
@@ -74,7 +200,187 @@ public class Image {
      * @return The color of the pixel at (x, y).
      */
     public Color getPixel(int x, int y) {
-        return pixelArray[x][y];
+        return new Color(getRGB(x, y));
+    }
+
+    /**
+     * Gets the packed RGB value of the pixel at specified coordinates.
+     *
+     * @param x The x-coordinate (row) of the pixel.
+     * @param y The y-coordinate (column) of the pixel.
+     * @return The packed RGB value of the pixel at (x, y), white if outside the source pixels.
+     */
+    public int getRGB(int x, int y) {
+        int row = originX + x;
+        int col = originY + y;
+        if (row < 0 || row >= sourceHeight || col < 0 || col >= sourceWidth) {
+            return WHITE_RGB;
+        }
+        return pixels[row * sourceWidth + col];
+    }
+
+    /**
+     * Gets a view of a rectangular region of this image.
+     * The view shares this image's pixel buffer, so no pixels are copied. The region may
+     * extend past the image's bounds, in which case the outside part reads as white.
+     *
+     * @param x      The x-coordinate (row) of the region's top-left pixel.
+     * @param y      The y-coordinate (column) of the region's top-left pixel.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     * @return An Image backed by the same pixels as this image.
+     */
+    public Image getSubImage(int x, int y, int width, int height) {
+        return new Image(source, originX + x, originY + y, width, height);
+    }
+
+    /**
+     * Gets a string identifying this image's pixels, for use as a cache key.
+     * Images read from a file are identified by the file's path, modification time and size;
+     * other images, such as uploads, by a SHA-256 digest of their size and pixels, so one image
+     * cannot be crafted to share another's identity. Views add their window to their source's
+     * identity.
+     *
+     * @return The identity of the image.
+     */
+    public String getIdentity() {
+        if (source != this) {
+            return source.getIdentity() + "@" + originX + "," + originY + "," + width + "x" + height;
+        }
+        String id = identity;
+        if (id == null) {
+            id = width + "x" + height + "#" + HexFormat.of().formatHex(digestPixels());
+            identity = id;
+        }
+        return id;
+    }
+
+    /**
+     * Computes the SHA-256 digest of this image's width, height and pixels.
+     */
+    private byte[] digestPixels() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(2 * Integer.BYTES).putInt(width).putInt(height).array());
+        ByteBuffer bytes = ByteBuffer.allocate(DIGEST_CHUNK_PIXELS * Integer.BYTES);
+        IntBuffer chunk = bytes.asIntBuffer();
+        for (int offset = 0; offset < pixels.length; offset += DIGEST_CHUNK_PIXELS) {
+            int count = Math.min(DIGEST_CHUNK_PIXELS, pixels.length - offset);
+            chunk.clear();
+            chunk.put(pixels, offset, count);
+            digest.update(bytes.array(), 0, count * Integer.BYTES);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Gets the first row of this image that maps onto source pixels.
+     */
+    int getSourceTop() {
+        return Math.max(0, -originX);
+    }
+
+    /**
+     * Gets the row after the last row of this image that maps onto source pixels.
+     */
+    int getSourceBottom() {
+        return Math.min(height, sourceHeight - originX);
+    }
+
+    /**
+     * Gets the first column of this image that maps onto source pixels.
+     */
+    int getSourceLeft() {
+        return Math.max(0, -originY);
+    }
+
+    /**
+     * Gets the column after the last column of this image that maps onto source pixels.
+     */
+    int getSourceRight() {
+        return Math.min(width, sourceWidth - originY);
+    }
+
+    /**
+     * Gets the grey sum of a region of this image that lies within the source pixels,
+     * using the source's summed-area table.
+     *
+     * @param top    The first row of the region.
+     * @param left   The first column of the region.
+     * @param bottom The row after the last row of the region.
+     * @param right  The column after the last column of the region.
+     * @return The sum of the scaled integer grey values of the region's pixels.
+     */
+    long sumSourceGrey(int top, int left, int bottom, int right) {
+        return source.getBrightnessIntegral().sum(
+                originX + top, originY + left, originX + bottom, originY + right);
+    }
+
+    /**
+     * Adds up the red, green and blue components of a region of this image that lies within
+     * the source pixels, using the source's per-channel summed-area tables.
+     *
+     * @param top    The first row of the region.
+     * @param left   The first column of the region.
+     * @param bottom The row after the last row of the region.
+     * @param right  The column after the last column of the region.
+     * @param sums   An array of three sums to add the red, green and blue components to.
+     */
+    void sumSourceColor(int top, int left, int bottom, int right, long[] sums) {
+        BrightnessIntegral[] integrals = source.getColorIntegrals();
+        for (int c = 0; c < integrals.length; c++) {
+            sums[c] += integrals[c].sum(
+                    originX + top, originY + left, originX + bottom, originY + right);
+        }
+    }
+
+    /**
+     * Gets the red, green and blue summed-area tables of this image's pixels, building them on
+     * first use. They take 12 bytes per pixel, so only colored output builds them.
+     *
+     * @return The tables, in red, green, blue order.
+     */
+    private BrightnessIntegral[] getColorIntegrals() {
+        BrightnessIntegral[] integrals = colorIntegrals;
+        if (integrals == null) {
+            synchronized (this) {
+                integrals = colorIntegrals;
+                if (integrals == null) {
+                    int[] channels = {BrightnessIntegral.CHANNEL_RED, BrightnessIntegral.CHANNEL_GREEN,
+                            BrightnessIntegral.CHANNEL_BLUE};
+                    integrals = new BrightnessIntegral[channels.length];
+                    for (int c = 0; c < channels.length; c++) {
+                        integrals[c] = new BrightnessIntegral(pixels, sourceWidth, sourceHeight, channels[c]);
+                    }
+                    colorIntegrals = integrals;
+                }
+            }
+        }
+        return integrals;
+    }
+
+    /**
+     * Gets the summed-area table of this image's pixels, building it on first use.
+     *
+     * @return The summed-area table.
+     */
+    private BrightnessIntegral getBrightnessIntegral() {
+        BrightnessIntegral integral = brightnessIntegral;
+        if (integral == null) {
+            synchronized (this) {
+                integral = brightnessIntegral;
+                if (integral == null) {
+                    integral = new BrightnessIntegral(pixels, sourceWidth, sourceHeight);
+                    brightnessIntegral = integral;
+                }
+            }
+        }
+        return integral;
     }
 
     /**
@@ -83,14 +389,14 @@ public class Image {
      * @param fileName The name of the output file (without extension).
      */
     public void saveImage(String fileName) {
-        // Initialize BufferedImage, assuming Color[][] is already properly populated.
-        BufferedImage bufferedImage = new BufferedImage(pixelArray[0].length, pixelArray.length,
-                BufferedImage.TYPE_INT_RGB);
-        // Set each pixel of the BufferedImage to the color from the Color[][].
-        for (int x = 0; x < pixelArray.length; x++) {
-            for (int y = 0; y < pixelArray[x].length; y++) {
-                bufferedImage.setRGB(y, x, pixelArray[x][y].getRGB());
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        // Copy the pixels into the BufferedImage, one row at a time
+        int[] row = new int[width];
+        for (int x = 0; x < height; x++) {
+            for (int y = 0; y < width; y++) {
+                row[y] = getRGB(x, y);
             }
+            bufferedImage.setRGB(0, x, width, 1, row, 0, width);
         }
         File outputfile = new File(fileName + ".jpeg");
         try {
@@ -1,27 +1,27 @@
 package image;
 
-import java.awt.*;
-
 /**
  * Utility class for image operations such as padding, partitioning, and calculating brightness.
  */
 public class ImageUtils {
 
-    private static final int RGB_MAX_VALUE = 255;
-    private static final double RED_WEIGHT = 0.2126;
-    private static final double GREEN_WEIGHT = 0.7152;
-    private static final double BLUE_WEIGHT = 0.0722;
+    private static final double WHITE_BRIGHTNESS = 1.0;
+    private static final int MAX_CHANNEL = 0xFF;
+    // samples along each side of a tile needed for an accurate tile brightness
+    private static final int MIN_TILE_SAMPLES = 8;
 
     /**
      * Pads the input image to the nearest power of two dimensions.
+     * The padding is virtual: the result is a view over the input's pixels, centered
+     * in a larger window whose margin reads as white, so no pixels are copied.
      *
      * @param image The input image to pad.
-     * @return A new padded Image object.
+     * @return A padded view of the input image.
      */
     public static Image padImage(Image image) {
         // Calculate the nearest power of two dimensions
-        int heightUpperPowerOf2 = (int) Math.pow(2, Math.ceil(Math.log(image.getHeight()) / Math.log(2)));
-        int widthUpperPowerOf2 = (int) Math.pow(2, Math.ceil(Math.log(image.getWidth()) / Math.log(2)));
+        int heightUpperPowerOf2 = upperPowerOf2(image.getHeight());
+        int widthUpperPowerOf2 = upperPowerOf2(image.getWidth());
 
         int heightDiff = heightUpperPowerOf2 - image.getHeight();
         int widthDiff = widthUpperPowerOf2 - image.getWidth();
@@ -31,24 +31,46 @@ public class ImageUtils {
             return image; // No padding needed
         }
 
-        // Create a new padded image array
-        Color[][] padImage = new Color[heightUpperPowerOf2][widthUpperPowerOf2];
-
-        // Fill the padded image array
-        for (int i = 0; i < heightUpperPowerOf2; i++) {
-            for (int j = 0; j < widthUpperPowerOf2; j++) {
-                if (i < heightDiff / 2 ||
-                        i >= image.getHeight() + (heightDiff / 2) ||
-                        j < widthDiff / 2 ||
-                        j >= image.getWidth() + (widthDiff / 2)) {
-                    padImage[i][j] = Color.WHITE; // Padding with white color
-                } else {
-                    padImage[i][j] = image.getPixel(i - (heightDiff / 2), j - (widthDiff / 2));
-                }
-            }
-        }
+        // Shift the window so the original image sits in its center, the margin reads as white
+        return image.getSubImage(-(heightDiff / 2), -(widthDiff / 2), widthUpperPowerOf2, heightUpperPowerOf2);
+    }
 
-        return new Image(padImage, widthUpperPowerOf2, heightUpperPowerOf2);
+    /**
+     * Calculates the smallest power of two that is not smaller than a positive number.
+     *
+     * @param n The number to round up.
+     * @return The nearest power of two at or above n.
+     */
+    static int upperPowerOf2(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * Picks a decode subsampling factor for an image that will be split into res tiles per row.
+     * The factor is the largest power of two that still leaves enough samples along each side
+     * of a tile for an accurate brightness. Subsampling by a power of two no larger than the tile
+     * keeps the padded dimensions, and so the tile grid, the same as for the full image.
+     *
+     * @param width The width of the full image.
+     * @param res   The number of tiles per row.
+     * @return The subsampling factor, 1 to decode every pixel.
+     */
+    public static int calcDecodeSubsampling(int width, int res) {
+        return calcDecodeSubsampling(width, res, MIN_TILE_SAMPLES);
+    }
+
+    /**
+     * Picks a decode subsampling factor that leaves at least minSamples samples along each side
+     * of a tile, see {@link #calcDecodeSubsampling(int, int)}.
+     *
+     * @param width      The width of the full image.
+     * @param res        The number of tiles per row.
+     * @param minSamples The minimum number of samples along each side of a tile.
+     * @return The subsampling factor, 1 to decode every pixel.
+     */
+    public static int calcDecodeSubsampling(int width, int res, int minSamples) {
+        int block = upperPowerOf2(width) / res;
+        return Math.max(1, Integer.highestOneBit(block / minSamples));
     }
 
     /**
@@ -56,27 +78,17 @@ public class ImageUtils {
      *
      * @param image The input image to partition.
      * @param res   The resolution (block size) for partitioning.
-     * @return A 2D array of Image objects representing the partitioned image.
+     * @return A 2D array of Image views over the input image's pixels.
      */
     public static Image[][] imagePartition(Image image, int res) {
         int block = image.getWidth() / res;
 
         Image[][] partition2D = new Image[image.getHeight() / block][res];
 
-        // Iterate through the image and create partitions
+        // Iterate through the image and create views of each block, without copying pixels
         for (int i = 0; i < image.getHeight(); i += block) {
             for (int j = 0; j < image.getWidth(); j += block) {
-                Color[][] pixelArray = new Color[block][block];
-
-                // Populate pixelArray with pixels from the original image
-                for (int x = 0; x < block; x++) {
-                    for (int y = 0; y < block; y++) {
-                        pixelArray[x][y] = image.getPixel(i + x, j + y);
-                    }
-                }
-
-                // Create Image object for each partition and store in partition2D array
-                partition2D[i / block][j / block] = new Image(pixelArray, block, block);
+                partition2D[i / block][j / block] = image.getSubImage(i, j, block, block);
             }
         }
 
@@ -91,19 +103,98 @@ public class ImageUtils {
      * @return The average brightness value of the image (0 to 1).
      */
     public static double calcImageBrightness(Image image) {
-        double greyPixelSum = 0;
-
-        // Iterate through the image and calculate brightness based on RGB values
-        for (int i = 0; i < image.getHeight(); i++) {
-            for (int j = 0; j < image.getWidth(); j++) {
-                Color pixel = image.getPixel(i, j);
-                greyPixelSum += pixel.getRed() * RED_WEIGHT
-                        + pixel.getGreen() * GREEN_WEIGHT
-                        + pixel.getBlue() * BLUE_WEIGHT;
-            }
+        return calcImageBrightness(image, 0, 0, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Calculates the average brightness of a rectangular region of the input image.
+     * The grey sum is read from the source image's summed-area table with four lookups,
+     * so the cost does not depend on the region's size. Parts of the region outside the
+     * source pixels count as white.
+     *
+     * @param image  The input image to calculate brightness.
+     * @param x      The x-coordinate (row) of the region's top-left pixel.
+     * @param y      The y-coordinate (column) of the region's top-left pixel.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     * @return The average brightness value of the region (0 to 1).
+     */
+    public static double calcImageBrightness(Image image, int x, int y, int width, int height) {
+        // Clip the region to the part that maps onto source pixels
+        int top = Math.max(x, image.getSourceTop());
+        int bottom = Math.min(x + height, image.getSourceBottom());
+        int left = Math.max(y, image.getSourceLeft());
+        int right = Math.min(y + width, image.getSourceRight());
+        if (top >= bottom || left >= right) {
+            return WHITE_BRIGHTNESS; // Region lies entirely in the white margin
         }
 
+        // The clipped-away margin is all white
+        long pixelCount = (long) height * width;
+        long marginPixels = pixelCount - (long) (bottom - top) * (right - left);
+        long greySum = marginPixels * BrightnessIntegral.WHITE_GREY + image.sumSourceGrey(top, left, bottom, right);
+
         // Calculate and return average brightness
-        return greyPixelSum / (image.getHeight() * image.getWidth() * RGB_MAX_VALUE);
+        return greySum / ((double) pixelCount * BrightnessIntegral.WHITE_GREY);
+    }
+
+    /**
+     * Calculates the mean color of a rectangular region of the input image. Parts of the region
+     * outside the source pixels count as white.
+     *
+     * @param image  The input image to calculate the color of.
+     * @param x      The x-coordinate (row) of the region's top-left pixel.
+     * @param y      The y-coordinate (column) of the region's top-left pixel.
+     * @param width  The width of the region.
+     * @param height The height of the region.
+     * @return The mean color of the region, packed as 0xRRGGBB.
+     */
+    public static int calcImageColor(Image image, int x, int y, int width, int height) {
+        // Clip the region to the part that maps onto source pixels
+        int top = Math.max(x, image.getSourceTop());
+        int bottom = Math.min(x + height, image.getSourceBottom());
+        int left = Math.max(y, image.getSourceLeft());
+        int right = Math.min(y + width, image.getSourceRight());
+        long pixelCount = (long) height * width;
+
+        // The clipped-away margin is all white
+        long marginPixels = pixelCount;
+        long[] sums = new long[3];
+        if (top < bottom && left < right) {
+            marginPixels -= (long) (bottom - top) * (right - left);
+            image.sumSourceColor(top, left, bottom, right, sums);
+        }
+
+        int color = 0;
+        for (long sum : sums) {
+            long channel = (sum + marginPixels * MAX_CHANNEL + pixelCount / 2) / pixelCount;
+            color = (color << 8) | (int) channel;
+        }
+        return color;
+    }
+
+    /**
+     * Calculates the brightness of each cell of a square tile split into a grid of
+     * cellsPerSide x cellsPerSide cells, row after row. When the tile is smaller than the grid,
+     * neighbouring cells share pixels.
+     *
+     * @param image        The input image to calculate brightness.
+     * @param x            The x-coordinate (row) of the tile's top-left pixel.
+     * @param y            The y-coordinate (column) of the tile's top-left pixel.
+     * @param size         The width and height of the tile.
+     * @param cellsPerSide The number of cells along each side of the tile.
+     * @param cells        An array of cellsPerSide^2 values to fill with cell brightness (0 to 1).
+     */
+    public static void calcCellBrightness(Image image, int x, int y, int size, int cellsPerSide,
+                                          double[] cells) {
+        for (int r = 0; r < cellsPerSide; r++) {
+            int top = r * size / cellsPerSide;
+            int height = Math.max(1, (r + 1) * size / cellsPerSide - top);
+            for (int c = 0; c < cellsPerSide; c++) {
+                int left = c * size / cellsPerSide;
+                int width = Math.max(1, (c + 1) * size / cellsPerSide - left);
+                cells[r * cellsPerSide + c] = calcImageBrightness(image, x + top, y + left, width, height);
+            }
+        }
     }
-}
\ No newline at end of file
+}
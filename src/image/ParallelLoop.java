@@ -0,0 +1,119 @@
+package image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs loops over independent index ranges (image rows, tile rows, columns) on a shared
+ * fork-join pool. The range is split recursively into a few tasks per thread, so idle
+ * threads steal the remaining work. With parallelism 1 loops run on the calling thread.
+ * Threads that already run conversions side by side, such as the workers of a batch or a
+ * service, can run their loops sequentially without changing the shared parallelism.
+ * Each index is handled by exactly one task, so results match the sequential loop.
+ */
+public class ParallelLoop {
+
+    private static final int TASKS_PER_THREAD = 4;
+
+    private static volatile ForkJoinPool pool = createPool(Runtime.getRuntime().availableProcessors());
+    // whether the current thread runs its loops sequentially, whatever the shared parallelism
+    private static final ThreadLocal<Boolean> SEQUENTIAL_THREAD = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * A loop body over a range of indices.
+     */
+    @FunctionalInterface
+    public interface RangeAction {
+        /**
+         * Handles the indices in [from, to).
+         *
+         * @param from The first index.
+         * @param to   The index after the last one.
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * Sets the number of threads loops run on.
+     * Loops that already picked the old pool finish on it; it is not shut down, as another
+     * thread may be about to submit to it, and its threads end once they are left idle.
+     *
+     * @param parallelism The number of threads, 1 for sequential execution.
+     * @throws IllegalArgumentException If parallelism is smaller than 1.
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        pool = createPool(parallelism);
+    }
+
+    /**
+     * Sets whether the loops started by the current thread run sequentially on it, whatever
+     * the shared parallelism. Meant for threads that run conversions side by side.
+     *
+     * @param sequential true to run the current thread's loops on it alone.
+     */
+    public static void setSequentialOnCurrentThread(boolean sequential) {
+        SEQUENTIAL_THREAD.set(sequential);
+    }
+
+    /**
+     * Gets the number of threads loops run on.
+     *
+     * @return The number of threads.
+     */
+    public static int getParallelism() {
+        ForkJoinPool currentPool = pool;
+        return currentPool == null ? 1 : currentPool.getParallelism();
+    }
+
+    /**
+     * Runs the action over the indices [0, count), splitting the range across the pool.
+     *
+     * @param count  The number of indices.
+     * @param action The loop body.
+     */
+    public static void forRange(int count, RangeAction action) {
+        ForkJoinPool currentPool = pool;
+        if (currentPool == null || count <= 1 || SEQUENTIAL_THREAD.get()) {
+            action.run(0, count);
+            return;
+        }
+        int grain = Math.max(1, count / (currentPool.getParallelism() * TASKS_PER_THREAD));
+        currentPool.invoke(new RangeTask(action, 0, count, grain));
+    }
+
+    private static ForkJoinPool createPool(int parallelism) {
+        return parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Splits a range in halves until it is no larger than the grain, then runs the action.
+     */
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeAction action;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        RangeTask(RangeAction action, int from, int to, int grain) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                action.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(action, from, mid, grain), new RangeTask(action, mid, to, grain));
+        }
+    }
+}
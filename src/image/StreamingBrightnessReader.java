@@ -0,0 +1,188 @@
+package image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Calculates the tile brightness grid of an image file without holding the whole image
+ * in memory. The image is decoded in horizontal bands of whole tile rows, using the reader's
+ * source region; each band's pixels are summed into its tiles and then dropped.
+ * Tiles are laid out over the image padded to power-of-two dimensions, exactly as in
+ * BrightnessPyramid, and the resulting values are identical to the in-memory path.
+ * Formats stored in strips or tiles (such as TIFF) decode each band on its own, while
+ * sequential formats (such as JPEG) re-scan earlier rows, so bands are made as tall as the
+ * memory budget allows. When tiles are large, the reader also skips pixels through source
+ * subsampling, keeping enough samples per tile for an accurate brightness; the values then
+ * match an in-memory image decoded with the same subsampling.
+ */
+public class StreamingBrightnessReader {
+
+    // pixels decoded at once, a band is never smaller than one tile row
+    private static final long BAND_PIXEL_BUDGET = 1 << 23;
+
+    private final File file;
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructs a reader for an image file, reading only the image's header.
+     *
+     * @param filename The path to the image file.
+     * @throws IOException If the file cannot be opened or its format is not supported.
+     */
+    public StreamingBrightnessReader(String filename) throws IOException {
+        file = new File(filename);
+        try (ImageInputStream in = openStream(file)) {
+            ImageReader reader = getReader(in);
+            try {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Gets the width of the image.
+     *
+     * @return The width of the image in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image.
+     *
+     * @return The height of the image in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the path identifying the file, its modification time and size, for use as a cache key.
+     *
+     * @return The identity of the image file.
+     * @throws IOException If the file's path cannot be resolved.
+     */
+    public String getIdentity() throws IOException {
+        return file.getCanonicalPath() + ":" + file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * Decodes the image band by band and calculates the brightness of each tile.
+     *
+     * @param res The number of tiles per row of the padded image.
+     * @return A 2D array of tile brightness values (0 to 1).
+     * @throws IOException If an error occurs during file reading.
+     */
+    public double[][] read(int res) throws IOException {
+        try (ImageInputStream in = openStream(file)) {
+            ImageReader reader = getReader(in);
+            try {
+                return readBrightness(reader, res);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private double[][] readBrightness(ImageReader reader, int res) throws IOException {
+        // Work in the coordinates of the subsampled image
+        int subsampling = ImageUtils.calcDecodeSubsampling(width, res);
+        int sampledWidth = (width + subsampling - 1) / subsampling;
+        int sampledHeight = (height + subsampling - 1) / subsampling;
+        int paddedWidth = ImageUtils.upperPowerOf2(sampledWidth);
+        int paddedHeight = ImageUtils.upperPowerOf2(sampledHeight);
+        int padTop = (paddedHeight - sampledHeight) / 2;
+        int padLeft = (paddedWidth - sampledWidth) / 2;
+        int block = paddedWidth / res;
+        int rows = paddedHeight / block;
+        double[][] grid = new double[rows][res];
+
+        // Tile column of every sampled column, and the number of sampled columns in each tile.
+        // Columns past the last whole tile are left out, as in the in-memory path.
+        int usedWidth = Math.min(sampledWidth, res * block - padLeft);
+        int[] tileOfColumn = new int[usedWidth];
+        long[] columnsInTile = new long[res];
+        for (int c = 0; c < usedWidth; c++) {
+            tileOfColumn[c] = (c + padLeft) / block;
+            columnsInTile[tileOfColumn[c]]++;
+        }
+
+        long pixelsPerTile = (long) block * block;
+        int tileRowsPerBand = (int) Math.max(1, BAND_PIXEL_BUDGET / sampledWidth / block);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        int[] rowPixels = new int[sampledWidth];
+        long[] greySums = new long[res];
+
+        for (int bandStart = 0; bandStart < rows; bandStart += tileRowsPerBand) {
+            int bandEnd = Math.min(rows, bandStart + tileRowsPerBand);
+            int bandTop = clampRow(bandStart * block - padTop, sampledHeight);
+            int bandBottom = clampRow(bandEnd * block - padTop, sampledHeight);
+            BufferedImage band = null;
+            if (bandTop < bandBottom) {
+                // The source rows whose subsamples are the band's rows
+                int sourceTop = bandTop * subsampling;
+                int sourceBottom = (bandBottom - 1) * subsampling + 1;
+                param.setSourceRegion(new Rectangle(0, sourceTop, width, sourceBottom - sourceTop));
+                band = reader.read(0, param);
+            }
+
+            for (int i = bandStart; i < bandEnd; i++) {
+                int tileTop = clampRow(i * block - padTop, sampledHeight);
+                int tileBottom = clampRow((i + 1) * block - padTop, sampledHeight);
+
+                // Sum the grey values of the tile row's sampled pixels into their tiles
+                Arrays.fill(greySums, 0);
+                for (int r = tileTop; r < tileBottom; r++) {
+                    band.getRGB(0, r - bandTop, sampledWidth, 1, rowPixels, 0, sampledWidth);
+                    for (int c = 0; c < usedWidth; c++) {
+                        greySums[tileOfColumn[c]] += BrightnessIntegral.grey(rowPixels[c]);
+                    }
+                }
+
+                // The rest of each tile is white margin
+                for (int j = 0; j < res; j++) {
+                    long marginPixels = pixelsPerTile - (tileBottom - tileTop) * columnsInTile[j];
+                    long greySum = greySums[j] + marginPixels * BrightnessIntegral.WHITE_GREY;
+                    grid[i][j] = greySum / ((double) pixelsPerTile * BrightnessIntegral.WHITE_GREY);
+                }
+            }
+        }
+        return grid;
+    }
+
+    private static int clampRow(int row, int height) {
+        return Math.max(0, Math.min(height, row));
+    }
+
+    static ImageInputStream openStream(File file) throws IOException {
+        ImageInputStream in = file.isFile() ? ImageIO.createImageInputStream(file) : null;
+        if (in == null) {
+            throw new IOException("Cannot open image file " + file);
+        }
+        return in;
+    }
+
+    static ImageReader getReader(ImageInputStream in) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, false, true);
+        return reader;
+    }
+}
@@ -2,6 +2,7 @@ package image_char_matching;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.Locale;
 
 /**
  * Inspired by, and partly copied from
@@ -15,8 +16,9 @@ import java.awt.image.BufferedImage;
 public class CharConverter {
     private static final double X_OFFSET_FACTOR = 0.2;
     private static final double Y_OFFSET_FACTOR = 0.75;
-    private static final String FONT_NAME = "Courier New";
-    private static final int DEFAULT_PIXEL_RESOLUTION = 16;
+    static final String FONT_NAME = "Courier New";
+    static final int DEFAULT_PIXEL_RESOLUTION = 16;
+    private static final int BITS_PER_WORD = 64;
 
     /**
      * Renders a given character, according to how it looks in the font specified in the
@@ -34,6 +36,47 @@ public class CharConverter {
         return matrix;
     }
 
+    /**
+     * Renders a given character like convertToBoolArray, packed into a bitset of
+     * DEFAULT_PIXEL_RESOLUTION^2 bits, row after row; a set bit is a true pixel.
+     */
+    static long[] convertToBitmap(char c) {
+        boolean[][] matrix = convertToBoolArray(c);
+        long[] bitmap = new long[bitmapWords(DEFAULT_PIXEL_RESOLUTION)];
+        for (int y = 0; y < DEFAULT_PIXEL_RESOLUTION; y++) {
+            for (int x = 0; x < DEFAULT_PIXEL_RESOLUTION; x++) {
+                if (matrix[y][x]) {
+                    int bit = y * DEFAULT_PIXEL_RESOLUTION + x;
+                    bitmap[bit / BITS_PER_WORD] |= 1L << (bit % BITS_PER_WORD);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Identifies the font glyphs are requested in: its name, style and size. This does not
+     * start the font system, so it can name a cache before any glyph is rendered.
+     */
+    static String getRequestedFontKey() {
+        return FONT_NAME + "-" + Font.PLAIN + "-" + DEFAULT_PIXEL_RESOLUTION;
+    }
+
+    /**
+     * Gets the face the font name resolves to, which is a fallback face when the named font is
+     * not installed. This starts the font system.
+     */
+    static String getResolvedFontName() {
+        return new Font(FONT_NAME, Font.PLAIN, DEFAULT_PIXEL_RESOLUTION).getFontName(Locale.ROOT);
+    }
+
+    /**
+     * Returns the number of longs in a packed bitmap of a square glyph.
+     */
+    static int bitmapWords(int pixelResolution) {
+        return (pixelResolution * pixelResolution + BITS_PER_WORD - 1) / BITS_PER_WORD;
+    }
+
     private static BufferedImage getBufferedImage(char c, String fontName, int pixelsPerRow) {
         String charStr = Character.toString(c);
         Font font = new Font(fontName, Font.PLAIN, pixelsPerRow);
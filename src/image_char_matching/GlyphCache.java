@@ -0,0 +1,203 @@
+package image_char_matching;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A persistent cache of rendered glyph bitmaps for the CharConverter font and resolution.
+ * The bitmaps are stored in a small file so later runs load them directly, without
+ * rendering glyphs, unless a glyph that was never rendered is requested.
+ * On a miss, every printable ASCII glyph is rendered at once, so the file is rewritten rarely.
+ * The file is named after the requested font, so a hit never starts the font system. The face
+ * the font resolved to when the glyphs were rendered is kept in the file's header and checked on
+ * the first miss, when the font system is started anyway: glyphs rendered in another face, such
+ * as a fallback before the named font was installed, are then dropped and rendered again.
+ * Persisting can be turned off, for runs that should leave no files behind.
+ */
+public class GlyphCache {
+    private static final int FILE_MAGIC = 0x474C5946; // "GLYF"
+    private static final int FILE_VERSION = 3;
+    private static final char MIN_PRINTABLE = ' ';
+    private static final char MAX_PRINTABLE = '~';
+    private static final String CACHE_DIR_PROPERTY = "ascii_art.glyph_cache_dir";
+    private static final String DEFAULT_CACHE_DIR = ".ascii_art";
+
+    // whether caches read and write their files
+    private static volatile boolean persistent = true;
+
+    private final Path file;
+    private final int words = CharConverter.bitmapWords(CharConverter.DEFAULT_PIXEL_RESOLUTION);
+    private final HashMap<Character, long[]> bitmaps = new HashMap<>();
+    // the face the cached bitmaps were rendered in, null while there are none
+    private String face;
+    private boolean loaded;
+
+    /**
+     * Constructs a glyph cache backed by a file, which is read on first use.
+     *
+     * @param file The cache file, or null to keep the cache in memory only.
+     */
+    GlyphCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the cache of the default font and resolution, shared by all matchers.
+     *
+     * @return The default glyph cache.
+     */
+    static GlyphCache getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * Sets whether glyph caches read and write their files. When off, glyphs are rendered once
+     * per process and kept in memory only.
+     *
+     * @param persistent true to use the cache files (the default), false to leave them alone.
+     */
+    public static void setPersistent(boolean persistent) {
+        GlyphCache.persistent = persistent;
+    }
+
+    /**
+     * Gets the packed bitmap of a glyph, as returned by CharConverter.convertToBitmap.
+     * The returned array is shared and must not be modified.
+     *
+     * @param c The character to get the bitmap of.
+     * @return The packed bitmap of the character.
+     */
+    synchronized long[] getBitmap(char c) {
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+        long[] bitmap = bitmaps.get(c);
+        if (bitmap == null) {
+            // AWT is initialized anyway, so check the cached glyphs' face and render every
+            // printable glyph while we are at it
+            String resolved = CharConverter.getResolvedFontName();
+            if (!resolved.equals(face)) {
+                bitmaps.clear();
+                face = resolved;
+            }
+            bitmap = CharConverter.convertToBitmap(c);
+            bitmaps.put(c, bitmap);
+            for (char printable = MIN_PRINTABLE; printable <= MAX_PRINTABLE; printable++) {
+                bitmaps.computeIfAbsent(printable, CharConverter::convertToBitmap);
+            }
+            save();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reads the cache file, ignoring it if it is missing, unreadable, or was written for
+     * another requested font or resolution.
+     */
+    private void load() {
+        if (file == null || !persistent || !Files.isRegularFile(file)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            if (data.readInt() != FILE_MAGIC
+                    || data.readInt() != FILE_VERSION
+                    || !data.readUTF().equals(CharConverter.getRequestedFontKey())
+                    || data.readInt() != CharConverter.DEFAULT_PIXEL_RESOLUTION) {
+                return;
+            }
+            String fileFace = data.readUTF();
+            int count = data.readInt();
+            HashMap<Character, long[]> read = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                char c = data.readChar();
+                long[] bitmap = new long[words];
+                for (int w = 0; w < words; w++) {
+                    bitmap[w] = data.readLong();
+                }
+                read.put(c, bitmap);
+            }
+            bitmaps.putAll(read);
+            face = fileFace;
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to read glyph cache \"%s\"", file));
+        }
+    }
+
+    /**
+     * Writes the cache file, replacing it atomically so concurrent readers never see a partial file.
+     */
+    private void save() {
+        if (file == null || !persistent) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), null);
+            try {
+                writeTo(temp);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to write glyph cache \"%s\"", file));
+        }
+    }
+
+    /**
+     * Writes the header and every cached bitmap to a file.
+     */
+    private void writeTo(Path target) throws IOException {
+        try (OutputStream out = Files.newOutputStream(target);
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+            data.writeInt(FILE_MAGIC);
+            data.writeInt(FILE_VERSION);
+            data.writeUTF(CharConverter.getRequestedFontKey());
+            data.writeInt(CharConverter.DEFAULT_PIXEL_RESOLUTION);
+            data.writeUTF(face);
+            data.writeInt(bitmaps.size());
+            for (Map.Entry<Character, long[]> entry : bitmaps.entrySet()) {
+                data.writeChar(entry.getKey());
+                for (long word : entry.getValue()) {
+                    data.writeLong(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the default cache file, in the directory named by the ascii_art.glyph_cache_dir
+     * system property, or in .ascii_art under the user's home directory.
+     */
+    private static Path defaultCacheFile() {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        Path cacheDir = dir != null
+                ? Paths.get(dir)
+                : Paths.get(System.getProperty("user.home"), DEFAULT_CACHE_DIR);
+        String name = String.format("glyphs-%s-%d.bin",
+                CharConverter.getRequestedFontKey().replaceAll("[^A-Za-z0-9]", "_"),
+                CharConverter.DEFAULT_PIXEL_RESOLUTION);
+        return cacheDir.resolve(name);
+    }
+
+    /**
+     * Holds the default cache, created on first use.
+     */
+    private static class DefaultHolder {
+        private static final GlyphCache DEFAULT = new GlyphCache(defaultCacheFile());
+    }
+}
@@ -1,17 +1,61 @@
 package image_char_matching;
 
-import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.HashMap;
+import image.ParallelLoop;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A class that matches characters to image brightness values and manages character sets dynamically.
+ * Lookups go through an immutable lookup table compiled from the charset, a snapshot that every
+ * edit replaces with a new one (copy-on-write). Readers take the current snapshot without locking,
+ * so renders may share a matcher with a thread that edits it, and never block behind the edit;
+ * a render sees either the charset before an edit or after it. Snapshots are interned by charset,
+ * so matchers with the same charset share one table.
  */
 public class SubImgCharMatcher {
     private static final int SUB_IMG_SIZE = 16;
-    private final TreeMap<Double, TreeSet<Character>> charBrightnessSortedMap = new TreeMap<>();
-    private final TreeSet<Character> currChars = new TreeSet<>();
-    private final HashMap<Character, Double> brightnessCalcs = new HashMap<>();
+    // number of equal brightness buckets in the lookup table, a power of two
+    private static final int LOOKUP_BUCKETS = 4096;
+    // table entry of a bucket that contains a boundary between two characters
+    private static final int MIXED_BUCKET = -1;
+    // patterns whose cells differ less than this are matched by brightness alone
+    private static final double MIN_PATTERN_CONTRAST = 0.1;
+    private static final int BITS_PER_WORD = 64;
+    // chars covered by the initial char-indexed tables, the ASCII range
+    private static final int INITIAL_CHAR_RANGE = 128;
+    // slots of the sorted arrays before the first growth, doubled whenever they fill up
+    private static final int INITIAL_SORTED_CAPACITY = 16;
+    // shares of a tile's quantization error diffused to its neighbours (Floyd-Steinberg)
+    private static final float DIFFUSE_RIGHT = 7f / 16;
+    private static final float DIFFUSE_BELOW_LEFT = 3f / 16;
+    private static final float DIFFUSE_BELOW = 5f / 16;
+    private static final float DIFFUSE_BELOW_RIGHT = 1f / 16;
+    // brightness table entry of a char whose brightness was not calculated yet
+    private static final double UNKNOWN_BRIGHTNESS = -1;
+    // charsets whose snapshots are kept for reuse, least recently used evicted first
+    private static final int MAX_INTERNED = 32;
+    private static final Map<String, LookupTable> INTERNED = new LinkedHashMap<String, LookupTable>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LookupTable> eldest) {
+            return size() > MAX_INTERNED;
+        }
+    };
+
+    // The editable charset, guarded by the matcher's lock and read only by editors. The tables
+    // indexed by char cover ASCII and grow to the highest char added.
+    // bitset of the current chars
+    private long[] currChars = new long[INITIAL_CHAR_RANGE / BITS_PER_WORD];
+    // brightness of every char calculated so far, UNKNOWN_BRIGHTNESS for the others
+    private double[] brightnessCalcs = newBrightnessCalcs(INITIAL_CHAR_RANGE);
+    // the current chars sorted by brightness and then by char, in the first charCount entries,
+    // grown with the charset
+    private double[] sortedBrightness = new double[INITIAL_SORTED_CAPACITY];
+    private char[] sortedChars = new char[INITIAL_SORTED_CAPACITY];
+    private int charCount;
+    // the compiled snapshot of the charset, replaced as a whole after every edit
+    private volatile LookupTable lookupTable;
 
     /**
      * Constructs a SubImgCharMatcher object with an initial set of characters.
@@ -19,10 +63,7 @@ public class SubImgCharMatcher {
      * @param charset The initial set of characters to manage.
      */
     public SubImgCharMatcher(char[] charset) {
-        for (char c : charset) {
-            // Add each character to the matcher
-            addChar(c);
-        }
+        addChars(charset);
     }
 
     /**
@@ -32,66 +73,203 @@ public class SubImgCharMatcher {
      * @return The closest matching character.
      */
     public char getCharByImageBrightness(double brightness) {
-        // Determine the range of brightness values in the sorted map
-        double minBrightness = charBrightnessSortedMap.firstKey();
-        double maxBrightness = charBrightnessSortedMap.lastKey();
+        return getLookupTable().getChar(brightness);
+    }
 
-        // Reverse the equation to find the true char brightness value
-        double originalCharBrightness = brightness * (maxBrightness - minBrightness) + minBrightness;
+    /**
+     * Retrieves the closest character for every brightness value of a grid in one pass.
+     * The lookup table is fetched once for the whole grid, and rows are split across the
+     * parallel loop's threads.
+     *
+     * @param brightness A 2D array of brightness values (0 to 1).
+     * @return A 2D array of the closest matching characters, of the same shape.
+     */
+    public char[][] getCharsByImageBrightness(double[][] brightness) {
+        char[][] chars = new char[brightness.length][];
+        for (int i = 0; i < brightness.length; i++) {
+            chars[i] = new char[brightness[i].length];
+        }
+        getCharsByImageBrightness(brightness, chars);
+        return chars;
+    }
 
-        // Find the closest brightness key in the map and return the corresponding character
-        double closestBrightness = findClosestKey(charBrightnessSortedMap, originalCharBrightness);
-        return charBrightnessSortedMap.get(closestBrightness).first();
+    /**
+     * Fills a character grid with the closest character for every brightness value of a grid.
+     *
+     * @param brightness A 2D array of brightness values (0 to 1).
+     * @param chars      A 2D array of the same shape to fill with the matching characters.
+     */
+    public void getCharsByImageBrightness(double[][] brightness, char[][] chars) {
+        LookupTable table = getLookupTable();
+        ParallelLoop.forRange(brightness.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                table.fillRow(brightness[i], chars[i]);
+            }
+        });
     }
 
     /**
-     * Finds the closest key in the TreeMap around the given value.
+     * Retrieves the closest characters for a brightness grid with Floyd-Steinberg error diffusion.
+     * Tiles are matched row after row, and the difference between each tile's brightness and
+     * its character's normalized brightness is spread over the next tile of its row (7/16) and
+     * the three tiles below it (3/16, 5/16 and 1/16). The pass streams over the grid keeping
+     * only two rows of error, the current row's and the next one's; as every row depends on
+     * the one above it, it runs on the calling thread.
      *
-     * @param map   The TreeMap containing brightness keys and character sets.
-     * @param value The brightness value to find closest key for.
-     * @return The closest key in the TreeMap to the given value.
+     * @param brightness A 2D array of brightness values (0 to 1), not modified.
+     * @return A 2D array of the matching characters, of the same shape.
      */
-    private Double findClosestKey(TreeMap<Double, TreeSet<Character>> map, Double value) {
-        // Find the closest keys around the given value
-        Double floorKey = map.floorKey(value);
-        Double ceilingKey = map.ceilingKey(value);
+    public char[][] getDitheredCharsByImageBrightness(double[][] brightness) {
+        LookupTable table = getLookupTable();
+        char[][] chars = new char[brightness.length][];
+        int columns = brightness.length == 0 ? 0 : brightness[0].length;
 
-        // Handle edge cases where floor or ceiling key might be null
-        if (floorKey == null) return ceilingKey;
-        if (ceilingKey == null) return floorKey;
+        // Errors are kept one column beyond each side, so the edges need no special cases
+        float[] rowError = new float[columns + 2];
+        float[] nextRowError = new float[columns + 2];
+        for (int i = 0; i < brightness.length; i++) {
+            double[] brightnessRow = brightness[i];
+            char[] charRow = new char[brightnessRow.length];
+            for (int j = 0; j < brightnessRow.length; j++) {
+                double value = brightnessRow[j] + rowError[j + 1];
+                int index = table.closestIndex(value);
+                charRow[j] = table.chars[index];
+                float error = (float) table.getQuantizationError(value, index);
+                rowError[j + 2] += error * DIFFUSE_RIGHT;
+                nextRowError[j] += error * DIFFUSE_BELOW_LEFT;
+                nextRowError[j + 1] += error * DIFFUSE_BELOW;
+                nextRowError[j + 2] += error * DIFFUSE_BELOW_RIGHT;
+            }
+            chars[i] = charRow;
 
-        // Determine which key is closer to the given value
-        if (Math.abs(value - floorKey) <= Math.abs(value - ceilingKey)) {
-            return floorKey;
-        } else {
-            return ceilingKey;
+            // The next row's error becomes the current one, and the current row's is reused
+            float[] done = rowError;
+            rowError = nextRowError;
+            nextRowError = done;
+            Arrays.fill(nextRowError, 0);
         }
+        return chars;
     }
 
     /**
-     * Adds a character to the matcher along with its calculated brightness.
+     * Gets the number of cells along each side of the patterns matched by getCharByPattern.
      *
-     * @param c The character to add.
+     * @return The pattern side length.
      */
-    public void addChar(char c) {
-        // Add character to current characters set
-        currChars.add(c);
+    public static int getPatternSize() {
+        return SUB_IMG_SIZE;
+    }
 
-        // Calculate brightness if not already calculated
-        if (!brightnessCalcs.containsKey(c)) {
-            brightnessCalcs.put(c, calcCharBrightness(c));
+    /**
+     * Gets the number of longs in the packed pattern buffers passed to getCharByPattern.
+     *
+     * @return The pattern buffer length.
+     */
+    public static int getPatternWords() {
+        return CharConverter.bitmapWords(SUB_IMG_SIZE);
+    }
+
+    /**
+     * Retrieves the character whose shape best matches a tile's brightness pattern.
+     * The pattern is thresholded halfway between its darkest and brightest cells and packed
+     * into a bitset, which is compared with every glyph bitmap by XOR and popcount; the glyph
+     * with the fewest differing pixels wins. Flat tiles, which have no shape to match, fall
+     * back to matching by brightness. The pattern is packed into a buffer the caller reuses
+     * across tiles.
+     *
+     * @param cells      The tile's getPatternSize()^2 cell brightness values, row after row.
+     * @param brightness The brightness value of the whole tile (0 to 1).
+     * @param pattern    A buffer of getPatternWords() longs, overwritten.
+     * @return The best matching character.
+     */
+    public char getCharByPattern(double[] cells, double brightness, long[] pattern) {
+        LookupTable table = getLookupTable();
+        double min = cells[0];
+        double max = cells[0];
+        for (double cell : cells) {
+            min = Math.min(min, cell);
+            max = Math.max(max, cell);
+        }
+        if (max - min < MIN_PATTERN_CONTRAST) {
+            return table.getChar(brightness);
         }
 
-        double charBrightness = brightnessCalcs.get(c);
+        // Bright cells correspond to the glyph's true (background) pixels
+        double threshold = (min + max) / 2;
+        Arrays.fill(pattern, 0);
+        for (int k = 0; k < cells.length; k++) {
+            if (cells[k] >= threshold) {
+                pattern[k / BITS_PER_WORD] |= 1L << (k % BITS_PER_WORD);
+            }
+        }
+        return table.getCharByPattern(pattern);
+    }
+
+    /**
+     * Gets the snapshot of the current charset, without locking. The snapshot never changes,
+     * so it can be kept to find out later what an edit of the charset changed.
+     *
+     * @return The lookup table.
+     */
+    public LookupTable getLookupTable() {
+        return lookupTable;
+    }
+
+    /**
+     * Finds the brightness ranges whose matching character may differ between an earlier
+     * snapshot of the charset and the current one. Brightness outside the ranges is matched to
+     * the same character by both, so after a charset edit only tiles within the ranges need to
+     * be matched again. The ranges are a little wider than the exact boundaries, never narrower.
+     *
+     * @param previous The earlier snapshot.
+     * @return The ranges as pairs of low and high brightness, low inclusive and high exclusive
+     * except for a high of 1, in ascending order and not touching each other.
+     */
+    public double[] getChangedIntervals(LookupTable previous) {
+        LookupTable current = getLookupTable();
+        if (previous == current) {
+            return new double[0];
+        }
+
+        // Runs of buckets that map to different characters, or contain a boundary, are changed
+        double[] intervals = new double[LOOKUP_BUCKETS + 1];
+        int count = 0;
+        int k = 0;
+        while (k < LOOKUP_BUCKETS) {
+            if (previous.buckets[k] == current.buckets[k] && current.buckets[k] != MIXED_BUCKET) {
+                k++;
+                continue;
+            }
+            int runStart = k;
+            while (k < LOOKUP_BUCKETS
+                    && (previous.buckets[k] != current.buckets[k] || current.buckets[k] == MIXED_BUCKET)) {
+                k++;
+            }
+            intervals[count++] = (double) runStart / LOOKUP_BUCKETS;
+            intervals[count++] = (double) k / LOOKUP_BUCKETS;
+        }
+        return Arrays.copyOf(intervals, count);
+    }
 
-        // Add character to the sorted map based on its brightness
-        if (charBrightnessSortedMap.containsKey(charBrightness)) {
-            charBrightnessSortedMap.get(charBrightness).add(c);
-        } else {
-            TreeSet<Character> charSet = new TreeSet<>();
-            charSet.add(c);
-            charBrightnessSortedMap.put(charBrightness, charSet);
+    /**
+     * Adds a character to the matcher along with its calculated brightness.
+     *
+     * @param c The character to add.
+     */
+    public void addChar(char c) {
+        addChars(new char[]{c});
+    }
+
+    /**
+     * Adds characters to the matcher, publishing a single new snapshot for all of them.
+     *
+     * @param chars The characters to add.
+     */
+    public synchronized void addChars(char[] chars) {
+        for (char c : chars) {
+            insertChar(c);
         }
+        publish();
     }
 
     /**
@@ -100,23 +278,133 @@ public class SubImgCharMatcher {
      * @param c The character to remove.
      */
     public void removeChar(char c) {
-        if (!brightnessCalcs.containsKey(c)) {
+        removeChars(new char[]{c});
+    }
+
+    /**
+     * Removes characters from the matcher, publishing a single new snapshot for all of them.
+     *
+     * @param chars The characters to remove.
+     */
+    public synchronized void removeChars(char[] chars) {
+        for (char c : chars) {
+            deleteChar(c);
+        }
+        publish();
+    }
+
+    private void insertChar(char c) {
+        if (c >= brightnessCalcs.length) {
+            growCharTables(c);
+        }
+        long bit = 1L << (c % BITS_PER_WORD);
+        if ((currChars[c / BITS_PER_WORD] & bit) != 0) {
+            return; // Character already present
+        }
+        currChars[c / BITS_PER_WORD] |= bit;
+
+        // Calculate brightness if not already calculated
+        if (brightnessCalcs[c] == UNKNOWN_BRIGHTNESS) {
+            brightnessCalcs[c] = calcCharBrightness(c);
+        }
+
+        // Insert the character into the sorted arrays at its place
+        if (charCount == sortedChars.length) {
+            sortedBrightness = Arrays.copyOf(sortedBrightness, charCount * 2);
+            sortedChars = Arrays.copyOf(sortedChars, charCount * 2);
+        }
+        int index = sortedIndex(brightnessCalcs[c], c);
+        System.arraycopy(sortedBrightness, index, sortedBrightness, index + 1, charCount - index);
+        System.arraycopy(sortedChars, index, sortedChars, index + 1, charCount - index);
+        sortedBrightness[index] = brightnessCalcs[c];
+        sortedChars[index] = c;
+        charCount++;
+    }
+
+    private void deleteChar(char c) {
+        long bit = 1L << (c % BITS_PER_WORD);
+        if (c >= brightnessCalcs.length || (currChars[c / BITS_PER_WORD] & bit) == 0) {
             return; // Character not found
         }
+        currChars[c / BITS_PER_WORD] &= ~bit;
 
-        Double charBrightness = brightnessCalcs.get(c);
+        // Remove character from the sorted arrays
+        int index = sortedIndex(brightnessCalcs[c], c);
+        System.arraycopy(sortedBrightness, index + 1, sortedBrightness, index, charCount - index - 1);
+        System.arraycopy(sortedChars, index + 1, sortedChars, index, charCount - index - 1);
+        charCount--;
+    }
 
-        // Remove character from the sorted map and current characters set
-        if (charBrightnessSortedMap.containsKey(charBrightness)) {
-            TreeSet<Character> currSet = charBrightnessSortedMap.get(charBrightness);
-            currSet.remove(c);
-            currChars.remove(c);
+    /**
+     * Finds the index of a character in the sorted arrays, or the index it would be inserted at.
+     *
+     * @param brightness The brightness of the character.
+     * @param c          The character.
+     * @return The index of the first entry not ordered before the character.
+     */
+    private int sortedIndex(double brightness, char c) {
+        int low = 0;
+        int high = charCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedBrightness[mid] < brightness
+                    || (sortedBrightness[mid] == brightness && sortedChars[mid] < c)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Grows the tables indexed by char to cover a character.
+     */
+    private void growCharTables(char c) {
+        int range = Math.max(brightnessCalcs.length * 2, Integer.highestOneBit(c) * 2);
+        double[] grown = newBrightnessCalcs(range);
+        System.arraycopy(brightnessCalcs, 0, grown, 0, brightnessCalcs.length);
+        brightnessCalcs = grown;
+        currChars = Arrays.copyOf(currChars, (range + BITS_PER_WORD - 1) / BITS_PER_WORD);
+    }
+
+    private static double[] newBrightnessCalcs(int range) {
+        double[] calcs = new double[range];
+        Arrays.fill(calcs, UNKNOWN_BRIGHTNESS);
+        return calcs;
+    }
 
-            // Remove brightness entry if the set is now empty
-            if (currSet.isEmpty()) {
-                charBrightnessSortedMap.remove(charBrightness);
+    /**
+     * Publishes the snapshot of the edited charset, reusing the interned one if the charset was
+     * compiled before. A new snapshot is compiled outside the interning lock, so matchers of
+     * other charsets are not held up; if another matcher interned the same charset meanwhile,
+     * its snapshot is kept.
+     */
+    private void publish() {
+        StringBuilder key = new StringBuilder(charCount);
+        for (int w = 0; w < currChars.length; w++) {
+            for (long bits = currChars[w]; bits != 0; bits &= bits - 1) {
+                key.append((char) (w * BITS_PER_WORD + Long.numberOfTrailingZeros(bits)));
+            }
+        }
+        String charset = key.toString();
+        if (lookupTable != null && lookupTable.charset.equals(charset)) {
+            return; // Nothing changed
+        }
+        LookupTable table;
+        synchronized (INTERNED) {
+            table = INTERNED.get(charset);
+        }
+        if (table == null) {
+            LookupTable compiled = new LookupTable(charset, sortedBrightness, sortedChars, charCount);
+            synchronized (INTERNED) {
+                table = INTERNED.putIfAbsent(charset, compiled);
+            }
+            if (table == null) {
+                table = compiled;
             }
         }
+        lookupTable = table;
     }
 
     /**
@@ -125,15 +413,13 @@ public class SubImgCharMatcher {
      * @param c The character to calculate brightness for.
      * @return The brightness value of the character (0 to 1).
      */
-    private Double calcCharBrightness(char c) {
-        boolean[][] boolArray = CharConverter.convertToBoolArray(c);
+    private double calcCharBrightness(char c) {
+        long[] bitmap = GlyphCache.getDefault().getBitmap(c);
         int counter = 0;
 
         // Count the number of true (black) pixels in the character representation
-        for (int i = 0; i < SUB_IMG_SIZE; i++) {
-            for (int j = 0; j < SUB_IMG_SIZE; j++) {
-                counter += boolArray[i][j] ? 1 : 0;
-            }
+        for (long word : bitmap) {
+            counter += Long.bitCount(word);
         }
 
         // Calculate and return the brightness as a ratio of black pixels to total pixels
@@ -146,11 +432,160 @@ public class SubImgCharMatcher {
      * @return An array of characters currently managed.
      */
     public char[] getCurrChars() {
-        char[] chars = new char[currChars.size()];
-        int i = 0;
-        for (char c : currChars) {
-            chars[i++] = c;
+        return getLookupTable().charset.toCharArray();
+    }
+
+    /**
+     * An immutable brightness to character lookup table compiled from the sorted charset.
+     * The normalized brightness range is split into equal buckets; a bucket whose whole range
+     * maps to one character stores it, so most lookups are a single array index. Buckets that
+     * contain a boundary between characters fall back to a binary search over primitive arrays,
+     * which gives the same result as searching the sorted charset.
+     * The table also holds the packed glyph bitmaps of every current character, one after
+     * the other, for shape matching.
+     */
+    public static final class LookupTable {
+        // the table's characters in ascending order, identifying it
+        private final String charset;
+        private final double[] sortedBrightness;
+        private final char[] chars;
+        private final char[] glyphChars;
+        private final long[] glyphBits;
+        private final int glyphWords;
+        private final double minBrightness;
+        private final double maxBrightness;
+        private final int[] buckets = new int[LOOKUP_BUCKETS];
+
+        private LookupTable(String charset, double[] charBrightness, char[] sortedChars, int charCount) {
+            this.charset = charset;
+
+            // Keep the lowest character of every distinct brightness, they come first
+            int distinct = 0;
+            for (int k = 0; k < charCount; k++) {
+                if (k == 0 || charBrightness[k] != charBrightness[k - 1]) {
+                    distinct++;
+                }
+            }
+            sortedBrightness = new double[distinct];
+            chars = new char[distinct];
+            int i = 0;
+            for (int k = 0; k < charCount; k++) {
+                if (k == 0 || charBrightness[k] != charBrightness[k - 1]) {
+                    sortedBrightness[i] = charBrightness[k];
+                    chars[i++] = sortedChars[k];
+                }
+            }
+            // An empty charset has a table too, it is never looked up
+            minBrightness = sortedBrightness.length == 0 ? 0 : sortedBrightness[0];
+            maxBrightness = sortedBrightness.length == 0 ? 0 : sortedBrightness[sortedBrightness.length - 1];
+
+            // The closest index never decreases with brightness, so a bucket maps to a single
+            // character exactly when both of its ends do
+            if (sortedBrightness.length > 0) {
+                int lowIndex = closestIndex((double) 0 / LOOKUP_BUCKETS);
+                for (int k = 0; k < LOOKUP_BUCKETS; k++) {
+                    int highIndex = closestIndex((double) (k + 1) / LOOKUP_BUCKETS);
+                    buckets[k] = lowIndex == highIndex ? chars[lowIndex] : MIXED_BUCKET;
+                    lowIndex = highIndex;
+                }
+            }
+
+            glyphWords = CharConverter.bitmapWords(SUB_IMG_SIZE);
+            glyphChars = charset.toCharArray();
+            glyphBits = new long[glyphChars.length * glyphWords];
+            for (int g = 0; g < glyphChars.length; g++) {
+                System.arraycopy(GlyphCache.getDefault().getBitmap(glyphChars[g]), 0, glyphBits, g * glyphWords,
+                        glyphWords);
+            }
+        }
+
+        private char getCharByPattern(long[] pattern) {
+            int bestGlyph = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int g = 0; g < glyphChars.length; g++) {
+                int base = g * glyphWords;
+                int distance = 0;
+                for (int w = 0; w < glyphWords; w++) {
+                    distance += Long.bitCount(pattern[w] ^ glyphBits[base + w]);
+                }
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    bestGlyph = g;
+                }
+            }
+            return glyphChars[bestGlyph];
+        }
+
+        private char getChar(double brightness) {
+            int bucket = (int) (brightness * LOOKUP_BUCKETS);
+            if (bucket >= 0 && bucket < LOOKUP_BUCKETS && buckets[bucket] != MIXED_BUCKET) {
+                return (char) buckets[bucket];
+            }
+            return chars[closestIndex(brightness)];
+        }
+
+        private void fillRow(double[] brightnessRow, char[] charRow) {
+            // Keep the tables in locals so the loop reads them without field loads
+            int[] bucketTable = buckets;
+            for (int j = 0; j < brightnessRow.length; j++) {
+                double brightness = brightnessRow[j];
+                int bucket = (int) (brightness * LOOKUP_BUCKETS);
+                if (bucket >= 0 && bucket < LOOKUP_BUCKETS && bucketTable[bucket] != MIXED_BUCKET) {
+                    charRow[j] = (char) bucketTable[bucket];
+                } else {
+                    charRow[j] = chars[closestIndex(brightness)];
+                }
+            }
+        }
+
+        /**
+         * Gets how much brighter a normalized image brightness is than the character it was
+         * matched to, on the normalized scale where the darkest character of the charset is 0
+         * and the brightest is 1.
+         *
+         * @param brightness The normalized image brightness.
+         * @param index      The index of the matched character in the sorted brightness array.
+         * @return The quantization error, 0 if all characters are equally bright.
+         */
+        private double getQuantizationError(double brightness, int index) {
+            if (maxBrightness == minBrightness) {
+                return 0;
+            }
+            return brightness - (sortedBrightness[index] - minBrightness) / (maxBrightness - minBrightness);
+        }
+
+        /**
+         * Finds the index of the character brightness closest to a normalized image brightness,
+         * preferring the lower one on ties.
+         *
+         * @param brightness The brightness value of the image (0 to 1).
+         * @return The index into the sorted brightness array.
+         */
+        private int closestIndex(double brightness) {
+            // Reverse the equation to find the true char brightness value
+            double value = brightness * (maxBrightness - minBrightness) + minBrightness;
+
+            // Find the first brightness not smaller than the value
+            int low = 0;
+            int high = sortedBrightness.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sortedBrightness[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            // Handle edge cases where there is no floor or no ceiling
+            if (low == sortedBrightness.length) return low - 1;
+            if (sortedBrightness[low] == value || low == 0) return low;
+
+            // Determine which key is closer to the given value
+            if (Math.abs(value - sortedBrightness[low - 1]) <= Math.abs(value - sortedBrightness[low])) {
+                return low - 1;
+            }
+            return low;
         }
-        return chars;
     }
 }
\ No newline at end of file
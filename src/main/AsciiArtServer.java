@@ -0,0 +1,417 @@
+package main;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_art.MatchMode;
+import ascii_output.AsciiOutput;
+import ascii_output.StreamAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.BrightnessCache;
+import image.Image;
+import image.ParallelLoop;
+import image_char_matching.GlyphCache;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived HTTP service converting uploaded images to ASCII art, so callers do not start a
+ * JVM per conversion. POST an image as the request body to /ascii, with the optional query
+ * parameters res, chars, format (text or html) and match (brightness, structure or dither); the art is
+ * streamed back in the response.
+ * The upload is decoded subsampled as far as the resolution allows. The decoder keeps the upload's
+ * bytes in memory as it reads them, so the upload size is capped along with the pixel count and
+ * resolution, which bounds the memory of each conversion.
+ * Admission control bounds how many conversions run and wait at once: requests past the bounds
+ * are turned away with 503 rather than queued without limit. Matchers are shared per charset,
+ * which compile their lookup table when created, and the tile brightness of recent images is cached, so an image
+ * posted again at a resolution it was converted at skips computing its brightness.
+ */
+class AsciiArtServer {
+
+    private static final String OPTION_SERVE = "--serve";
+    private static final String OPTION_HOST = "--host";
+    private static final String OPTION_GLYPH_CACHE = "--glyph-cache";
+    private static final String CONTEXT_PATH = "/ascii";
+    private static final String METHOD_POST = "POST";
+    private static final String PARAM_RES = "res";
+    private static final String PARAM_CHARS = "chars";
+    private static final String PARAM_FORMAT = "format";
+    private static final String PARAM_MATCH = "match";
+    private static final String FORMAT_TEXT = "text";
+    private static final String FORMAT_HTML = "html";
+    private static final String MATCH_BRIGHTNESS = "brightness";
+    private static final String MATCH_STRUCTURE = "structure";
+    private static final String MATCH_DITHER = "dither";
+    private static final String CONTENT_TYPE_TEXT = "text/plain; charset=utf-8";
+    private static final String CONTENT_TYPE_HTML = "text/html; charset=utf-8";
+
+    // Status codes
+    private static final int STATUS_OK = 200;
+    private static final int STATUS_BAD_REQUEST = 400;
+    private static final int STATUS_METHOD_NOT_ALLOWED = 405;
+    private static final int STATUS_TOO_LARGE = 413;
+    private static final int STATUS_UNAVAILABLE = 503;
+    // tells HttpExchange.sendResponseHeaders to stream a body of unknown length
+    private static final int CHUNKED_LENGTH = 0;
+    private static final int MAX_PORT = 0xFFFF;
+
+    // Limits bounding the memory and threads of the service
+    private static final int MAX_RES = 1024;
+    // also bounds the upload bytes the decoder keeps in memory
+    private static final long MAX_UPLOAD_BYTES = 32L << 20;
+    private static final int MAX_CONVERSIONS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int MAX_ADMITTED = 256;
+    private static final int HANDLER_THREADS = MAX_ADMITTED + 16;
+    private static final long ADMISSION_TIMEOUT_MILLIS = 10_000;
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final int MAX_MATCHERS = 64;
+    // tile brightness kept for images posted again, 8 bytes per cell
+    private static final long MAX_CACHED_CELLS = 4L << 20;
+
+    // Exit codes
+    private static final int EXIT_USAGE = 2;
+    private static final int EXIT_FAILED = 1;
+
+    private static final String USAGE = "Usage: Shell --serve <port> [--host <address>] [--glyph-cache on|off]";
+    private static final String MESSAGE_SERVING = "Serving on http://%s:%d%s%n";
+
+    // Requests being handled, converting or waiting to
+    private final Semaphore admitted = new Semaphore(MAX_ADMITTED);
+    // Conversions running at once, each holding a decoded image
+    private final Semaphore converting = new Semaphore(MAX_CONVERSIONS);
+    // Tile brightness of recent uploads, shared by every conversion
+    private final BrightnessCache brightnessCache = new BrightnessCache(MAX_CACHED_CELLS);
+    // Matchers by charset, least recently used evicted first
+    private final LinkedHashMap<String, SubImgCharMatcher> matchers =
+            new LinkedHashMap<String, SubImgCharMatcher>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SubImgCharMatcher> eldest) {
+                    return size() > MAX_MATCHERS;
+                }
+            };
+
+    /**
+     * Parses the command line arguments and starts the service, which runs until the process
+     * is stopped.
+     *
+     * @param args The command line arguments.
+     * @return 0 once the service is started, or the exit code of a failure.
+     */
+    static int start(String[] args) {
+        int port = -1;
+        InetAddress host = InetAddress.getLoopbackAddress();
+        // the service leaves no glyph cache file behind unless asked to
+        boolean glyphCache = false;
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case OPTION_SERVE:
+                        port = Integer.parseInt(args[i + 1]);
+                        break;
+                    case OPTION_HOST:
+                        host = InetAddress.getByName(args[i + 1]);
+                        break;
+                    case OPTION_GLYPH_CACHE:
+                        glyphCache = BatchRunner.parseSwitch(args[i], args[i + 1]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (port < 0 || port > MAX_PORT || args.length % 2 != 0) {
+                throw new IllegalArgumentException("Missing or invalid port");
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        GlyphCache.setPersistent(glyphCache);
+
+        try {
+            new AsciiArtServer().serve(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_FAILED;
+        }
+        return 0;
+    }
+
+    /**
+     * Binds the service to an address and starts handling requests.
+     *
+     * @param address The address to listen on.
+     * @throws IOException If the address cannot be bound.
+     */
+    void serve(InetSocketAddress address) throws IOException {
+        // Conversions already run side by side, so each one runs on its handler thread alone
+        ExecutorService handlers = Executors.newFixedThreadPool(HANDLER_THREADS, task -> new Thread(() -> {
+            ParallelLoop.setSequentialOnCurrentThread(true);
+            task.run();
+        }));
+
+        HttpServer server = HttpServer.create(address, MAX_ADMITTED);
+        server.setExecutor(handlers);
+        server.createContext(CONTEXT_PATH, this::handle);
+        server.start();
+        System.out.printf(MESSAGE_SERVING, address.getHostString(), server.getAddress().getPort(), CONTEXT_PATH);
+    }
+
+    /**
+     * Handles a conversion request.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals(METHOD_POST)) {
+                sendError(exchange, STATUS_METHOD_NOT_ALLOWED, "Use POST with the image as the request body");
+                return;
+            }
+            Request request;
+            try {
+                request = new Request(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, STATUS_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && Long.parseLong(length) > MAX_UPLOAD_BYTES) {
+                sendError(exchange, STATUS_TOO_LARGE, "The image is larger than " + MAX_UPLOAD_BYTES + " bytes");
+                return;
+            }
+
+            // Turn requests away at once when too many are already in flight
+            if (!admitted.tryAcquire()) {
+                sendUnavailable(exchange);
+                return;
+            }
+            try {
+                convert(exchange, request);
+            } finally {
+                admitted.release();
+            }
+        } catch (NumberFormatException e) {
+            sendError(exchange, STATUS_BAD_REQUEST, "Invalid Content-Length");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Converts an admitted request's image once a conversion slot frees up, and streams the art
+     * back.
+     */
+    private void convert(HttpExchange exchange, Request request) throws IOException {
+        char[][] art;
+        try {
+            if (!converting.tryAcquire(ADMISSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                sendUnavailable(exchange);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendUnavailable(exchange);
+            return;
+        }
+        BoundedInputStream body = new BoundedInputStream(exchange.getRequestBody());
+        try {
+            Image image = Image.read(body,
+                    width -> AsciiArtAlgorithm.calcDecodeSubsampling(width, request.res, request.matchMode),
+                    AsciiArtAlgorithm.STREAMING_PIXEL_THRESHOLD);
+            if (image.getWidth() < request.res) {
+                sendError(exchange, STATUS_BAD_REQUEST, "The image is narrower than the resolution");
+                return;
+            }
+            AsciiArtAlgorithm algorithm =
+                    new AsciiArtAlgorithm(image, request.res, getMatcher(request.chars), brightnessCache);
+            algorithm.setMatchMode(request.matchMode);
+            art = algorithm.run();
+        } catch (IOException e) {
+            sendError(exchange, body.exceeded ? STATUS_TOO_LARGE : STATUS_BAD_REQUEST,
+                    "Cannot read the image: " + e.getMessage());
+            return;
+        } finally {
+            converting.release();
+        }
+
+        // Writing the art to a slow client does not hold a conversion slot
+        exchange.getResponseHeaders().set("Content-Type", request.html ? CONTENT_TYPE_HTML : CONTENT_TYPE_TEXT);
+        exchange.sendResponseHeaders(STATUS_OK, CHUNKED_LENGTH);
+        try (OutputStream response = exchange.getResponseBody()) {
+            AsciiOutput output = request.html
+                    ? new StreamAsciiOutput(response, Shell.DEFAULT_OUTPUT_FONT)
+                    : new StreamAsciiOutput(response);
+            output.out(art);
+        } catch (UncheckedIOException e) {
+            // The client went away, there is no one to tell
+        }
+    }
+
+    /**
+     * Gets the shared matcher of a charset, creating it on first use.
+     *
+     * @param chars The charset, sorted and without duplicates.
+     * @return The matcher of the charset, which must not be modified.
+     */
+    private SubImgCharMatcher getMatcher(String chars) {
+        synchronized (matchers) {
+            return matchers.computeIfAbsent(chars, key -> new SubImgCharMatcher(key.toCharArray()));
+        }
+    }
+
+    private void sendUnavailable(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+        sendError(exchange, STATUS_UNAVAILABLE, "Too many conversions in progress");
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE_TEXT);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream response = exchange.getResponseBody()) {
+            response.write(body);
+        }
+    }
+
+    /**
+     * The conversion settings of a request, parsed from its query string.
+     */
+    private static class Request {
+        private int res = Shell.DEFAULT_RESOLUTION;
+        private String chars = new String(Shell.DEFAULT_CHARSET);
+        private boolean html;
+        private MatchMode matchMode = MatchMode.BRIGHTNESS;
+
+        Request(String rawQuery) {
+            Map<String, String> params = new HashMap<>();
+            if (rawQuery != null) {
+                for (String pair : rawQuery.split("&")) {
+                    int equals = pair.indexOf('=');
+                    if (equals > 0) {
+                        params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                                URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                    }
+                }
+            }
+
+            if (params.containsKey(PARAM_RES)) {
+                try {
+                    res = Integer.parseInt(params.get(PARAM_RES));
+                } catch (NumberFormatException e) {
+                    res = 0;
+                }
+                if (res < 1 || res > MAX_RES) {
+                    throw new IllegalArgumentException("res must be between 1 and " + MAX_RES);
+                }
+            }
+            if (params.containsKey(PARAM_CHARS)) {
+                chars = params.get(PARAM_CHARS);
+            }
+            chars = normalizeCharset(chars);
+            String format = params.getOrDefault(PARAM_FORMAT, FORMAT_TEXT);
+            if (!format.equals(FORMAT_TEXT) && !format.equals(FORMAT_HTML)) {
+                throw new IllegalArgumentException("format must be " + FORMAT_TEXT + " or " + FORMAT_HTML);
+            }
+            html = format.equals(FORMAT_HTML);
+            String match = params.getOrDefault(PARAM_MATCH, MATCH_BRIGHTNESS);
+            switch (match) {
+                case MATCH_BRIGHTNESS:
+                    matchMode = MatchMode.BRIGHTNESS;
+                    break;
+                case MATCH_STRUCTURE:
+                    matchMode = MatchMode.STRUCTURE;
+                    break;
+                case MATCH_DITHER:
+                    matchMode = MatchMode.DITHER;
+                    break;
+                default:
+                    throw new IllegalArgumentException("match must be " + MATCH_BRIGHTNESS + ", " + MATCH_STRUCTURE
+                            + " or " + MATCH_DITHER);
+            }
+        }
+
+        /**
+         * Sorts a charset and drops duplicates, so equal charsets share a matcher, and checks
+         * that it holds enough printable ASCII chars.
+         */
+        private static String normalizeCharset(String chars) {
+            TreeSet<Character> sorted = new TreeSet<>();
+            for (char c : chars.toCharArray()) {
+                if (c < Shell.MIN_ASCII_VAL || c > Shell.MAX_ASCII_VAL) {
+                    throw new IllegalArgumentException("chars must be printable ASCII");
+                }
+                sorted.add(c);
+            }
+            if (sorted.size() < Shell.MIN_CHARSET_SIZE) {
+                throw new IllegalArgumentException("chars needs at least " + Shell.MIN_CHARSET_SIZE + " chars");
+            }
+            StringBuilder normalized = new StringBuilder();
+            for (char c : sorted) {
+                normalized.append(c);
+            }
+            return normalized.toString();
+        }
+    }
+
+    /**
+     * Passes an upload through, failing once it grows past the upload limit, so a missing or
+     * false Content-Length cannot make the service read without bound.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining = MAX_UPLOAD_BYTES;
+        private boolean exceeded;
+
+        BoundedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                consume(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            consume(skipped);
+            return skipped;
+        }
+
+        private void consume(long count) throws IOException {
+            remaining -= count;
+            if (remaining < 0) {
+                exceeded = true;
+                throw new IOException("The image is larger than " + MAX_UPLOAD_BYTES + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package main;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_art.MatchMode;
+import ascii_output.MappedAsciiOutput;
+import image.BrightnessCache;
+import image.BrightnessPyramid;
+import image.ParallelLoop;
+import image.StreamingBrightnessReader;
+import image_char_matching.GlyphCache;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts many images without the interactive shell, on a bounded pool of worker threads.
+ * Inputs are image paths, glob patterns over file names (such as "frames/*.jpeg"), or
+ * manifests given as "@file" listing one path per line. Every image is converted with its own
+ * character matcher into its own output file, and the run ends with a throughput summary.
+ */
+class BatchRunner {
+
+    private static final String OPTION_RES = "--res";
+    private static final String OPTION_CHARS = "--chars";
+    private static final String OPTION_OUT = "--out";
+    private static final String OPTION_FORMAT = "--format";
+    private static final String OPTION_WORKERS = "--workers";
+    private static final String OPTION_MATCH = "--match";
+    private static final String OPTION_GLYPH_CACHE = "--glyph-cache";
+    private static final String VALUE_ON = "on";
+    private static final String VALUE_OFF = "off";
+    private static final String FORMAT_TEXT = "text";
+    private static final String FORMAT_HTML = "html";
+    private static final String MANIFEST_PREFIX = "@";
+    private static final String MANIFEST_COMMENT = "#";
+    private static final String GLOB_CHARS = "*?[{";
+    private static final String CURRENT_DIR = ".";
+    private static final String INDEX_SEPARATOR = "-";
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double MEDIAN = 0.5;
+    private static final double TAIL = 0.99;
+    // tile brightness kept for images listed more than once, 8 bytes per cell
+    private static final long MAX_CACHED_CELLS = 4L << 20;
+
+    // Exit codes
+    private static final int EXIT_SUCCESS = 0;
+    private static final int EXIT_FAILED_JOBS = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = "Usage: Shell <image | glob | @manifest>... [--res <n>] [--chars <chars>]"
+            + " [--out <dir>] [--format text|html] [--workers <n>] [--match brightness|structure|dither]"
+            + " [--glyph-cache on|off]";
+    private static final String MESSAGE_SUMMARY =
+            "Converted %d of %d images in %.2f s: %.1f images/s, p50 %.1f ms, p99 %.1f ms.%n";
+    private static final String MESSAGE_FAILED = "Failed to convert %s: %s%n";
+    private static final String MESSAGE_RENAMED = "Output name of %s clashes with another input, writing it as %s%n";
+
+    private final List<Path> inputs = new ArrayList<>();
+    private int res = Shell.DEFAULT_RESOLUTION;
+    private char[] charset = Shell.DEFAULT_CHARSET;
+    private Path outputDir = Paths.get(CURRENT_DIR);
+    private boolean html = true;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private MatchMode matchMode = MatchMode.BRIGHTNESS;
+    // batch runs leave no glyph cache file behind unless asked to
+    private boolean glyphCache;
+    // shared by the jobs, so an image converted again reuses its tile brightness
+    private final BrightnessCache brightnessCache = new BrightnessCache(MAX_CACHED_CELLS);
+
+    /**
+     * Parses the command line arguments, converts every input and prints a summary.
+     *
+     * @param args The command line arguments.
+     * @return The process exit code: 0 on success, 1 if some images failed, 2 on bad arguments.
+     */
+    static int run(String[] args) {
+        BatchRunner runner = new BatchRunner();
+        try {
+            runner.parse(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        GlyphCache.setPersistent(runner.glyphCache);
+        return runner.convertAll();
+    }
+
+    /**
+     * Parses the options and expands the inputs into image paths.
+     */
+    private void parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                expandInput(arg);
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case OPTION_RES:
+                    res = parsePositive(arg, value);
+                    break;
+                case OPTION_CHARS:
+                    charset = value.toCharArray();
+                    break;
+                case OPTION_OUT:
+                    outputDir = Paths.get(value);
+                    break;
+                case OPTION_FORMAT:
+                    if (!value.equals(FORMAT_TEXT) && !value.equals(FORMAT_HTML)) {
+                        throw new IllegalArgumentException("Unknown format " + value);
+                    }
+                    html = value.equals(FORMAT_HTML);
+                    break;
+                case OPTION_WORKERS:
+                    workers = parsePositive(arg, value);
+                    break;
+                case OPTION_MATCH:
+                    matchMode = parseMatchMode(value);
+                    break;
+                case OPTION_GLYPH_CACHE:
+                    glyphCache = parseSwitch(arg, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No input images");
+        }
+        if (charset.length < Shell.MIN_CHARSET_SIZE) {
+            throw new IllegalArgumentException("The charset needs at least " + Shell.MIN_CHARSET_SIZE + " chars");
+        }
+    }
+
+    private static MatchMode parseMatchMode(String value) {
+        for (MatchMode mode : MatchMode.values()) {
+            if (mode.name().toLowerCase(Locale.ROOT).equals(value)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown match mode " + value);
+    }
+
+    /**
+     * Parses the value of an on/off option.
+     *
+     * @param option The option.
+     * @param value  The option's value, "on" or "off".
+     * @return true for "on".
+     */
+    static boolean parseSwitch(String option, String value) {
+        if (!value.equals(VALUE_ON) && !value.equals(VALUE_OFF)) {
+            throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+        }
+        return value.equals(VALUE_ON);
+    }
+
+    private static int parsePositive(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+    }
+
+    /**
+     * Adds the images named by an input argument: a manifest, a glob pattern, or a path.
+     */
+    private void expandInput(String arg) throws IOException {
+        if (arg.startsWith(MANIFEST_PREFIX)) {
+            for (String line : Files.readAllLines(Paths.get(arg.substring(MANIFEST_PREFIX.length())))) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith(MANIFEST_COMMENT)) {
+                    inputs.add(Paths.get(line));
+                }
+            }
+            return;
+        }
+
+        Path path = Paths.get(arg);
+        String pattern = path.getFileName() == null ? "" : path.getFileName().toString();
+        if (pattern.chars().noneMatch(c -> GLOB_CHARS.indexOf(c) >= 0)) {
+            inputs.add(path);
+            return;
+        }
+
+        // The glob matches file names within the pattern's directory
+        Path directory = path.getParent() == null ? Paths.get(CURRENT_DIR) : path.getParent();
+        List<Path> matches = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, pattern)) {
+            for (Path match : stream) {
+                if (Files.isRegularFile(match)) {
+                    matches.add(match);
+                }
+            }
+        }
+        matches.sort(null);
+        inputs.addAll(matches);
+    }
+
+    /**
+     * Converts every input on the worker pool and prints the summary.
+     *
+     * @return The process exit code.
+     */
+    private int convertAll() {
+        // Images are converted side by side, so each conversion runs on its worker alone
+        long start = System.nanoTime();
+        List<String> outputNames = assignOutputNames();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, task -> new Thread(() -> {
+            ParallelLoop.setSequentialOnCurrentThread(true);
+            task.run();
+        }));
+        List<Future<Long>> jobs = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            Path input = inputs.get(i);
+            String outputName = outputNames.get(i);
+            jobs.add(pool.submit(() -> convert(input, outputName)));
+        }
+        pool.shutdown();
+
+        long[] latencies = new long[inputs.size()];
+        int converted = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                latencies[converted] = jobs.get(i).get();
+                converted++;
+            } catch (ExecutionException e) {
+                System.err.printf(MESSAGE_FAILED, inputs.get(i), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                break;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+
+        long[] sorted = Arrays.copyOf(latencies, converted);
+        Arrays.sort(sorted);
+        System.out.printf(MESSAGE_SUMMARY, converted, inputs.size(), seconds, converted / seconds,
+                percentile(sorted, MEDIAN) / NANOS_PER_MILLI, percentile(sorted, TAIL) / NANOS_PER_MILLI);
+        return converted == inputs.size() ? EXIT_SUCCESS : EXIT_FAILED_JOBS;
+    }
+
+    /**
+     * Names the output file of every input after the input's file name without its extension.
+     * Inputs whose names clash, such as a/img.jpg and b/img.png, or an image listed twice, are
+     * told apart by an index, so no two jobs write the same file. Names are compared ignoring
+     * case, as some file systems do.
+     *
+     * @return The output base name of each input, in input order.
+     */
+    private List<String> assignOutputNames() {
+        List<String> baseNames = new ArrayList<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (Path input : inputs) {
+            String name = input.getFileName().toString();
+            int extension = name.lastIndexOf('.');
+            String baseName = extension > 0 ? name.substring(0, extension) : name;
+            baseNames.add(baseName);
+            counts.merge(baseName.toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+
+        // Unique names are kept as they are, clashing ones take the first free index
+        Set<String> taken = new HashSet<>(counts.keySet());
+        List<String> outputNames = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            String baseName = baseNames.get(i);
+            if (counts.get(baseName.toLowerCase(Locale.ROOT)) == 1) {
+                outputNames.add(baseName);
+                continue;
+            }
+            String outputName;
+            int index = 1;
+            do {
+                outputName = baseName + INDEX_SEPARATOR + index++;
+            } while (!taken.add(outputName.toLowerCase(Locale.ROOT)));
+            System.err.printf(MESSAGE_RENAMED, inputs.get(i), outputName);
+            outputNames.add(outputName);
+        }
+        return outputNames;
+    }
+
+    /**
+     * Gets a percentile of sorted values by the nearest-rank method.
+     *
+     * @param sorted   The values, in ascending order.
+     * @param fraction The percentile, as a fraction between 0 and 1.
+     * @return The value at the percentile, or 0 if there are no values.
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Converts one image into its output file.
+     *
+     * @param input      The image to convert.
+     * @param outputName The base name of the output file.
+     * @return The time the conversion took, in nanoseconds.
+     * @throws IOException If the image cannot be read or is narrower than the resolution, or if
+     *                     its output cannot be written.
+     */
+    private long convert(Path input, String outputName) throws IOException {
+        long start = System.nanoTime();
+        StreamingBrightnessReader reader = new StreamingBrightnessReader(input.toString());
+        int width = reader.getWidth();
+        if (width < res) {
+            throw new IOException("the image is narrower than the resolution");
+        }
+
+        BrightnessPyramid pyramid = AsciiArtAlgorithm.loadPyramid(input.toString(), reader, res, matchMode);
+
+        // Each job matches with its own matcher; the brightness cache is the only state jobs share
+        AsciiArtAlgorithm algorithm =
+                new AsciiArtAlgorithm(pyramid, res, new SubImgCharMatcher(charset), brightnessCache);
+        algorithm.setMatchMode(matchMode);
+        char[][] art = algorithm.run();
+        // Written rather than output, so a failed write fails the job
+        createOutput(outputName).write(art);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Creates the output of an image, a file with the given base name in the output directory.
+     */
+    private MappedAsciiOutput createOutput(String baseName) throws IOException {
+        Files.createDirectories(outputDir);
+        if (html) {
+            return new MappedAsciiOutput(outputDir.resolve(baseName + "." + FORMAT_HTML).toString(),
+                    Shell.DEFAULT_OUTPUT_FONT);
+        }
+        return new MappedAsciiOutput(outputDir.resolve(baseName + ".txt").toString());
+    }
+}
@@ -6,13 +6,24 @@ import ascii_art.exceptions.MinCharSetException;
 import ascii_art.exceptions.ResOutOfBoundException;
 import ascii_output.AsciiOutput;
 import ascii_output.ConsoleAsciiOutput;
+import ascii_output.DeltaConsoleAsciiOutput;
 import ascii_output.HtmlAsciiOutput;
+import ascii_output.MappedAsciiOutput;
+import image.BrightnessPyramid;
 import image.Image;
+import image.ParallelLoop;
+import image.StreamingBrightnessReader;
 import image_char_matching.SubImgCharMatcher;
 import ascii_art.AsciiArtAlgorithm;
+import ascii_art.FrameSequenceConverter;
+import ascii_art.IncrementalAsciiArt;
 import ascii_art.KeyboardInput;
+import ascii_art.MatchMode;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
 
 /**
  * The Shell class manages ASCII art generation and configuration via command-line interface.
@@ -22,23 +33,28 @@ public class Shell {
 
     // Default values
     private static final String DEFAULT_IMAGE_PATH = "images/lemur.jpeg";
-    private static final char[] DEFAULT_CHARSET = {'1', '0', '2', '3', '4', '5', '6', '7', '8', '9'};
-    private static final int DEFAULT_RESOLUTION = 128;
+    static final char[] DEFAULT_CHARSET = {'1', '0', '2', '3', '4', '5', '6', '7', '8', '9'};
+    static final int DEFAULT_RESOLUTION = 128;
     private static final String DEFAULT_OUTPUT_FILE = "out.html";
-    private static final String DEFAULT_OUTPUT_FONT = "Courier New";
+    private static final String DEFAULT_TEXT_OUTPUT_FILE = "out.txt";
+    static final String DEFAULT_OUTPUT_FONT = "Courier New";
 
     // Miscellaneous constants
+    private static final String OPTION_SERVE = "--serve";
     private static final String INPUT_INDICATOR = ">>> ";
-    private static final int MIN_CHARSET_SIZE = 2;
+    static final int MIN_CHARSET_SIZE = 2;
     private static final int MIN_RESOLUTION = 2;
     private static final int RES_MULTIPLIER = 2;
     private static final int MIN_COMMAND_PARTS = 2;
     private static final String SPACE = " ";
-    private static final int MIN_ASCII_VAL = 32;
-    private static final int MAX_ASCII_VAL = 126;
+    static final int MIN_ASCII_VAL = 32;
+    static final int MAX_ASCII_VAL = 126;
     private static final char HYPHEN = '-';
     private static final char DOT = '.';
     private static final int CHAR_RANGE = 3;
+    // brightness change below which a tile of an animation keeps its previous character
+    private static final double FRAME_REUSE_THRESHOLD = 0.02;
+    private static final double NANOS_PER_SECOND = 1e9;
 
     // Error messages
     private static final String ERROR_INCORRECT_COMMAND = "Did not execute due to incorrect command.";
@@ -52,27 +68,55 @@ public class Shell {
     private static final String COMMAND_IMAGE = "image";
     private static final String COMMAND_OUTPUT = "output";
     private static final String COMMAND_ASCIIART = "asciiArt";
+    private static final String COMMAND_THREADS = "threads";
+    private static final String COMMAND_MATCH = "match";
+    private static final String COMMAND_FRAMES = "frames";
+    private static final String COMMAND_COLOR = "color";
+    private static final String COMMAND_ON = "on";
+    private static final String COMMAND_OFF = "off";
+    private static final String COMMAND_BRIGHTNESS = "brightness";
+    private static final String COMMAND_STRUCTURE = "structure";
+    private static final String COMMAND_DITHER = "dither";
     private static final String COMMAND_UP = "up";
     private static final String COMMAND_DOWN = "down";
     private static final String COMMAND_CONSOLE = "console";
     private static final String COMMAND_HTML = "html";
+    private static final String COMMAND_COMPACT = "compact";
+    private static final String COMMAND_MAPPED = "mapped";
+    private static final String COMMAND_TEXT = "text";
+    private static final String COMMAND_DELTA = "delta";
     private static final String ADD_ARGUMENT_SPACE = "space";
     private static final String ADD_ARGUMENT_ALL = "all";
 
     // Prompt messages
     private static final String MESSAGE_RESOLUTION_SET = "Resolution set to ";
+    private static final String MESSAGE_THREADS_SET = "Threads set to ";
+    private static final String MESSAGE_FRAMES_CONVERTED = "Converted %d frames at %.1f fps.%n";
+    private static final String MESSAGE_STRUCTURE_STREAMED =
+            "Matching by brightness: structure mode needs the image's pixels, and this image is too large"
+                    + " to load at this resolution.";
 
     // Instance variables
     private final SubImgCharMatcher subImgCharMatcher = new SubImgCharMatcher(DEFAULT_CHARSET);
     private int resolution = DEFAULT_RESOLUTION;
-    private Image image;
+    private BrightnessPyramid brightnessPyramid;
+    private String imagePath;
+    private boolean imageStreamed;
+    private int imageHeight;
+    private int imageSubsampling;
     private int maxResolution;
     private int minResolution;
     private final AsciiOutput consoleOutput = new ConsoleAsciiOutput();
+    private final DeltaConsoleAsciiOutput deltaConsoleOutput = new DeltaConsoleAsciiOutput();
     private final AsciiOutput htmlOutput = new HtmlAsciiOutput(DEFAULT_OUTPUT_FILE, DEFAULT_OUTPUT_FONT);
+    private final AsciiOutput compactHtmlOutput = new HtmlAsciiOutput(DEFAULT_OUTPUT_FILE, DEFAULT_OUTPUT_FONT, true);
+    private final AsciiOutput mappedHtmlOutput = new MappedAsciiOutput(DEFAULT_OUTPUT_FILE, DEFAULT_OUTPUT_FONT);
+    private final AsciiOutput textOutput = new MappedAsciiOutput(DEFAULT_TEXT_OUTPUT_FILE);
     private AsciiOutput output = consoleOutput;
-    private Boolean imageChanged = true;
-    private Boolean resChanged = true;
+    // the last art, matched again only where charset edits changed it
+    private final IncrementalAsciiArt incrementalArt = new IncrementalAsciiArt();
+    private MatchMode matchMode = MatchMode.BRIGHTNESS;
+    private boolean colorOutput;
 
     /**
      * Constructor for the Shell class.
@@ -92,11 +136,23 @@ public class Shell {
 
     /**
      * Main method for the Shell class.
-     * Creates a new Shell instance and runs it.
+     * Creates a new Shell instance and runs it, or, when there are arguments, starts the HTTP
+     * service ("--serve <port>") or converts the images they name in batch mode.
      *
      * @param args The command line arguments.
      */
     public static void main(String[] args) {
+        // Arguments select the HTTP service or the batch mode, which convert images without prompting
+        if (args.length > 0 && args[0].equals(OPTION_SERVE)) {
+            int exitCode = AsciiArtServer.start(args);
+            if (exitCode != 0) {
+                System.exit(exitCode);
+            }
+            return;
+        }
+        if (args.length > 0) {
+            System.exit(BatchRunner.run(args));
+        }
         new Shell().run();
     }
 
@@ -137,6 +193,18 @@ public class Shell {
                     case COMMAND_ASCIIART:
                         runAsciiArt();
                         break;
+                    case COMMAND_THREADS:
+                        setThreads(commandParts);
+                        break;
+                    case COMMAND_MATCH:
+                        setMatchMode(commandParts);
+                        break;
+                    case COMMAND_COLOR:
+                        setColorOutput(commandParts);
+                        break;
+                    case COMMAND_FRAMES:
+                        runFrames(commandParts);
+                        break;
                     default:
                         System.out.println(ERROR_INCORRECT_COMMAND);
                         break;
@@ -189,9 +257,7 @@ public class Shell {
         }
         // Add all chars in range
         if (argument.equals(ADD_ARGUMENT_ALL)) {
-            for (char c = MIN_ASCII_VAL; c <= MAX_ASCII_VAL; c++) {
-                subImgCharMatcher.addChar(c);
-            }
+            subImgCharMatcher.addChars(charRange(MIN_ASCII_VAL, MAX_ASCII_VAL));
             return;
         }
         // Add space
@@ -208,9 +274,7 @@ public class Shell {
                 && argument.charAt(1) == HYPHEN) {
             char max = (char) Math.max(argument.charAt(0), argument.charAt(CHAR_RANGE-1));
             char min = (char) Math.min(argument.charAt(0), argument.charAt(CHAR_RANGE-1));
-            for (char c = min; c <= max; c++) {
-                subImgCharMatcher.addChar(c);
-            }
+            subImgCharMatcher.addChars(charRange(min, max));
             return;
         }
         throw new FormatException(COMMAND_ADD);
@@ -236,9 +300,7 @@ public class Shell {
         }
         // Remove all chars in range
         if (argument.equals(ADD_ARGUMENT_ALL)) {
-            for (char c = MIN_ASCII_VAL; c <= MAX_ASCII_VAL; c++) {
-                subImgCharMatcher.removeChar(c);
-            }
+            subImgCharMatcher.removeChars(charRange(MIN_ASCII_VAL, MAX_ASCII_VAL));
             return;
         }
         // Remove space
@@ -250,14 +312,27 @@ public class Shell {
         if (argument.length() == CHAR_RANGE && argument.charAt(1) == HYPHEN) {
             char max = (char) Math.max(argument.charAt(0), argument.charAt(CHAR_RANGE-1));
             char min = (char) Math.min(argument.charAt(0), argument.charAt(CHAR_RANGE-1));
-            for (char c = min; c <= max; c++) {
-                subImgCharMatcher.removeChar(c);
-            }
+            subImgCharMatcher.removeChars(charRange(min, max));
             return;
         }
         throw new FormatException(COMMAND_REMOVE);
     }
 
+    /**
+     * Lists the chars of a range, so the matcher takes them in a single edit.
+     *
+     * @param min The first char of the range.
+     * @param max The last char of the range.
+     * @return The chars from min to max, inclusive.
+     */
+    private static char[] charRange(int min, int max) {
+        char[] chars = new char[max - min + 1];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (min + i);
+        }
+        return chars;
+    }
+
     /**
      * Sets the resolution for ASCII art generation.
      *
@@ -274,13 +349,11 @@ public class Shell {
                     throw new ResOutOfBoundException();
                 }
                 resolution *= RES_MULTIPLIER;
-                resChanged = true;
             } else if (option.equals(COMMAND_DOWN)) {
                 if (resolution / RES_MULTIPLIER < minResolution) {
                     throw new ResOutOfBoundException();
                 }
                 resolution /= RES_MULTIPLIER;
-                resChanged = true;
             } else {
                 throw new FormatException(COMMAND_RES);
             }
@@ -289,9 +362,34 @@ public class Shell {
         System.out.println(MESSAGE_RESOLUTION_SET + resolution + DOT);
     }
 
+    /**
+     * Sets the number of threads used to compute tile brightness and match characters.
+     * A count of 1 runs everything sequentially; the output is the same for any count.
+     *
+     * @param commandParts The parts of the command that was entered by the user.
+     * @throws FormatException If the command format is incorrect.
+     */
+    private void setThreads(String[] commandParts) throws FormatException {
+        if (commandParts.length > 1) {
+            int threads;
+            try {
+                threads = Integer.parseInt(commandParts[1]);
+            } catch (NumberFormatException e) {
+                throw new FormatException(COMMAND_THREADS);
+            }
+            if (threads < 1) {
+                throw new FormatException(COMMAND_THREADS);
+            }
+            ParallelLoop.setParallelism(threads);
+        }
+
+        System.out.println(MESSAGE_THREADS_SET + ParallelLoop.getParallelism() + DOT);
+    }
+
     /**
      * Sets the image to the file path specified by the user.
      * Updates resolution and related properties based on the loaded image.
+     * Images too large to hold in memory are streamed from the file band by band instead.
      *
      * @param commandParts The parts of the command that was entered by the user.
      * @throws FormatException If the command format is incorrect.
@@ -304,24 +402,48 @@ public class Shell {
 
         String filePath = commandParts[1];
 
-        // Attempt to load the image and set the resolution, min resolution, and max resolution
+        // Attempt to read the image's size, then load or stream it
+        StreamingBrightnessReader reader;
         try {
-            image = new Image(filePath);
+            reader = new StreamingBrightnessReader(filePath);
         } catch (IOException e) {
             throw new InvalidImagePathException();
         }
-        maxResolution = image.getWidth();
-        minResolution = Math.max(1, image.getWidth() / image.getHeight());
+        int width = reader.getWidth();
+        int height = reader.getHeight();
 
         // Check if resolution exceeds for the new image
-        if (resolution > maxResolution) {
-            resolution = MIN_RESOLUTION;
+        int newResolution = resolution > width ? MIN_RESOLUTION : resolution;
+
+        // Build the brightness of every resolution reachable by going down from the current one
+        boolean streamed = AsciiArtAlgorithm.needsStreaming((long) width * height);
+        int subsampling = streamed ? 1 : AsciiArtAlgorithm.calcDecodeSubsampling(width, newResolution, matchMode);
+        BrightnessPyramid pyramid;
+        try {
+            pyramid = streamed
+                    ? new BrightnessPyramid(reader)
+                    : new BrightnessPyramid(new Image(filePath, subsampling));
+            pyramid.buildLevels(newResolution);
+        } catch (IOException | UncheckedIOException e) {
+            throw new InvalidImagePathException();
         }
-        imageChanged = true;
+
+        // Set the image, the resolution, min resolution, and max resolution
+        imagePath = filePath;
+        imageStreamed = streamed;
+        imageSubsampling = subsampling;
+        brightnessPyramid = pyramid;
+        imageHeight = height;
+        maxResolution = width;
+        minResolution = Math.max(1, width / height);
+        resolution = newResolution;
     }
 
     /**
      * Sets the output method to either console or HTML based on user input.
+     * "html compact" writes the HTML gzip-encoded, "html mapped" and "text" write through
+     * memory-mapped files for very large canvases, and "console delta" redraws only the cells
+     * that changed since the last output.
      *
      * @param commandParts The parts of the command that was entered by the user.
      * @throws FormatException If the command format is incorrect.
@@ -335,42 +457,186 @@ public class Shell {
         // Set the output method or print an error message if the format is incorrect
         switch (option) {
             case COMMAND_CONSOLE:
-                output = consoleOutput;
+                if (commandParts.length == MIN_COMMAND_PARTS) {
+                    output = consoleOutput;
+                } else if (commandParts[2].equals(COMMAND_DELTA)) {
+                    output = deltaConsoleOutput;
+                } else {
+                    throw new FormatException(COMMAND_OUTPUT);
+                }
                 break;
             case COMMAND_HTML:
-                output = htmlOutput;
+                if (commandParts.length == MIN_COMMAND_PARTS) {
+                    output = htmlOutput;
+                } else if (commandParts[2].equals(COMMAND_COMPACT)) {
+                    output = compactHtmlOutput;
+                } else if (commandParts[2].equals(COMMAND_MAPPED)) {
+                    output = mappedHtmlOutput;
+                } else {
+                    throw new FormatException(COMMAND_OUTPUT);
+                }
+                break;
+            case COMMAND_TEXT:
+                output = textOutput;
                 break;
             default:
                 throw new FormatException(COMMAND_OUTPUT);
         }
     }
 
+    /**
+     * Sets whether characters are matched to tiles by brightness, by shape, or by dithered brightness.
+     *
+     * @param commandParts The parts of the command that was entered by the user.
+     * @throws FormatException If the command format is incorrect.
+     */
+    private void setMatchMode(String[] commandParts) throws FormatException {
+        if (commandParts.length < MIN_COMMAND_PARTS) {
+            throw new FormatException(COMMAND_MATCH);
+        }
+
+        switch (commandParts[1]) {
+            case COMMAND_BRIGHTNESS:
+                matchMode = MatchMode.BRIGHTNESS;
+                break;
+            case COMMAND_STRUCTURE:
+                matchMode = MatchMode.STRUCTURE;
+                break;
+            case COMMAND_DITHER:
+                matchMode = MatchMode.DITHER;
+                break;
+            default:
+                throw new FormatException(COMMAND_MATCH);
+        }
+    }
+
+    /**
+     * Sets whether the ASCII art is drawn in the image's colors.
+     *
+     * @param commandParts The parts of the command that was entered by the user.
+     * @throws FormatException If the command format is incorrect.
+     */
+    private void setColorOutput(String[] commandParts) throws FormatException {
+        if (commandParts.length < MIN_COMMAND_PARTS) {
+            throw new FormatException(COMMAND_COLOR);
+        }
+
+        switch (commandParts[1]) {
+            case COMMAND_ON:
+                colorOutput = true;
+                break;
+            case COMMAND_OFF:
+                colorOutput = false;
+                break;
+            default:
+                throw new FormatException(COMMAND_COLOR);
+        }
+    }
+
+    /**
+     * Decodes the image in more detail if the resolution or match mode now needs more samples.
+     * A streamed image keeps no pixels, so it is decoded, subsampled, once structure mode needs
+     * them, as long as the subsampled image is within the streaming threshold; an image that
+     * would outgrow the threshold is streamed again.
+     *
+     * @throws InvalidImagePathException If the image can no longer be read.
+     */
+    private void reloadImage() throws InvalidImagePathException {
+        int subsampling = AsciiArtAlgorithm.calcDecodeSubsampling(maxResolution, resolution, matchMode);
+        boolean needsReload = imageStreamed ? matchMode == MatchMode.STRUCTURE : subsampling < imageSubsampling;
+        if (!needsReload) {
+            return;
+        }
+
+        // Subsampled decoding keeps every subsampling-th pixel, starting with the first
+        long decodedPixels = (long) ((maxResolution + subsampling - 1) / subsampling)
+                * ((imageHeight + subsampling - 1) / subsampling);
+        try {
+            if (!AsciiArtAlgorithm.needsStreaming(decodedPixels)) {
+                brightnessPyramid = new BrightnessPyramid(new Image(imagePath, subsampling));
+                imageStreamed = false;
+                imageSubsampling = subsampling;
+            } else if (!imageStreamed) {
+                brightnessPyramid = new BrightnessPyramid(new StreamingBrightnessReader(imagePath));
+                imageStreamed = true;
+                imageSubsampling = 1;
+            }
+        } catch (IOException e) {
+            throw new InvalidImagePathException();
+        }
+    }
+
     /**
      * Generates ASCII art based on the current settings and outputs it using the selected output method.
      *
      * @throws MinCharSetException If the character set is too small to generate ASCII art.
+     * @throws InvalidImagePathException If the image can no longer be read.
      */
-    private void runAsciiArt() throws MinCharSetException {
+    private void runAsciiArt() throws MinCharSetException, InvalidImagePathException {
         // If charset is too small, print error message and return
         if (subImgCharMatcher.getCurrChars().length < MIN_CHARSET_SIZE) {
             throw new MinCharSetException();
         }
 
-        AsciiArtAlgorithm asciiArtAlgorithm;
-        // not using the save image partition Brightnesses
-        if (imageChanged || resChanged) {
-            asciiArtAlgorithm = new AsciiArtAlgorithm(image, resolution, subImgCharMatcher, false);
-        }
-        // using the save image partition Brightnesses
-        else{
-            asciiArtAlgorithm = new AsciiArtAlgorithm(image, resolution, subImgCharMatcher, true);
+        reloadImage();
+        if (imageStreamed && matchMode == MatchMode.STRUCTURE) {
+            System.out.println(MESSAGE_STRUCTURE_STREAMED);
         }
+
+        // Tile brightness is looked up in the image's pyramid, built once per image and res
+        AsciiArtAlgorithm asciiArtAlgorithm =
+                new AsciiArtAlgorithm(brightnessPyramid, resolution, subImgCharMatcher);
+        asciiArtAlgorithm.setMatchMode(matchMode);
+
         // Run the algorithm and output the result
-        char[][] art = asciiArtAlgorithm.run();
-        output.out(art);
+        char[][] art;
+        try {
+            art = incrementalArt.run(asciiArtAlgorithm);
+        } catch (UncheckedIOException e) {
+            throw new InvalidImagePathException();
+        }
+
+        // A streamed image has no colors, its art is output plain
+        int[][] colors = colorOutput ? asciiArtAlgorithm.calcColors() : null;
+        // The prompt and command scrolled the terminal since the last art, so the delta output
+        // starts from a clear screen; only frame playback redraws just the changes
+        deltaConsoleOutput.reset();
+        if (colors != null) {
+            output.out(art, colors);
+        } else {
+            output.out(art);
+        }
+    }
+
+    /**
+     * Converts every frame in a directory to ASCII art with the current settings and outputs
+     * the frames one after the other.
+     *
+     * @param commandParts The parts of the command that was entered by the user.
+     * @throws FormatException If the command format is incorrect.
+     * @throws MinCharSetException If the character set is too small to generate ASCII art.
+     * @throws InvalidImagePathException If a frame cannot be read or is narrower than the resolution.
+     */
+    private void runFrames(String[] commandParts)
+            throws FormatException, MinCharSetException, InvalidImagePathException {
+        if (commandParts.length < MIN_COMMAND_PARTS) {
+            throw new FormatException(COMMAND_FRAMES);
+        }
+        if (subImgCharMatcher.getCurrChars().length < MIN_CHARSET_SIZE) {
+            throw new MinCharSetException();
+        }
 
-        // Update last run variables
-        imageChanged = false;
-        resChanged = false;
+        long start = System.nanoTime();
+        int count;
+        deltaConsoleOutput.reset();
+        try {
+            List<File> frames = FrameSequenceConverter.listFrames(commandParts[1]);
+            count = new FrameSequenceConverter(frames, resolution, subImgCharMatcher, matchMode,
+                    FRAME_REUSE_THRESHOLD).run(output);
+        } catch (IOException e) {
+            throw new InvalidImagePathException();
+        }
+        double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+        System.out.printf(MESSAGE_FRAMES_CONVERTED, count, count / seconds);
     }
-}
\ No newline at end of file
+}